@@ -0,0 +1,158 @@
+package com.rezzedup.zip.benchmarks;
+
+import com.rezzedup.zip.Filter;
+import com.rezzedup.zip.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paths checked per second against a mix of wildcard and regex filters,
+ * for the compiled filter and for the one-regex-per-filter matching it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark
+{
+    private static final int PATHS = 10000;
+    private static final String[] EXTENSIONS = {"txt", "dat", "java", "class", "png", "log", "zip", "db"};
+    
+    @Param({"4", "32"})
+    public int filters;
+    
+    private final List<String> paths = new ArrayList<>(PATHS);
+    private Main.RegexPathFilter compiled;
+    private LegacyFilter legacy;
+    
+    @Setup
+    public void generate()
+    {
+        this.compiled = new Main.RegexPathFilter();
+        this.legacy = new LegacyFilter();
+        
+        for (int i = 0; i < this.filters; i++)
+        {
+            switch (i % 5)
+            {
+                case 0: addWildcard("*.ext" + i); break;
+                case 1: addWildcard("build" + i + "/*"); break;
+                case 2: addWildcard("cache" + i); break;
+                case 3: addWildcard("*tmp" + i + "*.log"); break;
+                default: addRegex("(.*/)?node_modules" + i + "/.*"); break;
+            }
+        }
+        
+        Random random = new Random(PATHS);
+        
+        for (int i = 0; i < PATHS; i++)
+        {
+            StringBuilder path = new StringBuilder();
+            int depth = 1 + random.nextInt(5);
+            
+            for (int level = 0; level < depth; level++)
+            {
+                String[] names = {"src", "build", "cache", "node_modules", "tmp", "assets"};
+                path.append(names[random.nextInt(names.length)]).append(random.nextInt(this.filters + 4)).append('/');
+            }
+            path.append("file").append(i).append('.').append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            this.paths.add(path.toString());
+        }
+    }
+    
+    private void addWildcard(String wildcard)
+    {
+        this.compiled.addWildcardFilter(wildcard);
+        this.legacy.addWildcardFilter(wildcard);
+    }
+    
+    private void addRegex(String regex)
+    {
+        this.compiled.addRegexFilter(regex);
+        this.legacy.addRegexFilter(regex);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    public int compiled()
+    {
+        return count(this.compiled);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    public int legacy()
+    {
+        return count(this.legacy);
+    }
+    
+    private int count(Filter<String> filter)
+    {
+        int accepted = 0;
+        
+        for (String path : this.paths)
+        {
+            if (filter.accepts(path))
+            {
+                accepted += 1;
+            }
+        }
+        return accepted;
+    }
+    
+    /**
+     * RegexPathFilter as it was before filters were compiled: every wildcard
+     * turned into its own regex and matched with String.matches.
+     */
+    static final class LegacyFilter implements Filter<String>
+    {
+        private final List<String> patterns = new ArrayList<>();
+        
+        LegacyFilter()
+        {
+            addWildcardFilter("*.zip").addWildcardFilter("*.db");
+        }
+        
+        LegacyFilter addWildcardFilter(String filter)
+        {
+            this.patterns.add(("(?i)\\Q" + filter + "\\E").replace("*", "\\E.*\\Q"));
+            return this;
+        }
+        
+        LegacyFilter addRegexFilter(String filter)
+        {
+            this.patterns.add("(?i)" + filter);
+            return this;
+        }
+        
+        @Override
+        public boolean accepts(String path)
+        {
+            for (String pattern : this.patterns)
+            {
+                if (path.matches(pattern))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.rezzedup.zip.benchmarks;
+
+import com.rezzedup.zip.Print;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Keeps Zip-It's console output out of the measurements and the JMH log.
+ * {@link Print} holds on to the stream it was given rather than looking up
+ * {@code System.out} on every line, so it's redirected along with it.
+ */
+final class Silence
+{
+    private static PrintStream original = null;
+    
+    private Silence() {}
+    
+    static synchronized void start()
+    {
+        if (original != null)
+        {
+            return;
+        }
+        
+        PrintStream nowhere = new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b) {}
+            
+            @Override
+            public void write(byte[] bytes, int offset, int length) {}
+        });
+        
+        original = System.out;
+        Print.verbose(false);
+        Print.redirect(nowhere);
+        System.setOut(nowhere);
+    }
+    
+    static synchronized void stop()
+    {
+        if (original == null)
+        {
+            return;
+        }
+        
+        System.setOut(original);
+        Print.redirect(original);
+        Print.verbose(true);
+        original = null;
+    }
+}
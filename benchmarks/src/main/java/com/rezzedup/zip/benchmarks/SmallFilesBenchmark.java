@@ -0,0 +1,88 @@
+package com.rezzedup.zip.benchmarks;
+
+import com.rezzedup.zip.DirectoryZipper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several jobs in a row over many small files, where the cost is per entry
+ * rather than per byte. Meant to be run with JMH's GC profiler, whose
+ * {@code gc.alloc.rate.norm} is the bytes allocated per run of all the jobs:
+ * <pre>
+ * java -jar target/benchmarks.jar SmallFilesBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SmallFilesBenchmark
+{
+    @Param({"5000"})
+    public int files;
+    
+    @Param({"1024"})
+    public int fileSize;
+    
+    @Param({"0.5"})
+    public double compressibility;
+    
+    @Param({"4"})
+    public int jobs;
+    
+    @Param({"1", "4"})
+    public int threads;
+    
+    private SyntheticTree tree;
+    
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        Silence.start();
+        this.tree = SyntheticTree.generate(this.files, this.fileSize, this.compressibility);
+    }
+    
+    @TearDown(Level.Invocation)
+    public void clearOutput() throws IOException
+    {
+        this.tree.clearOutput();
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException
+    {
+        this.tree.delete();
+        Silence.stop();
+    }
+    
+    @Benchmark
+    public DirectoryZipper zip(Throughput throughput)
+    {
+        DirectoryZipper zipper = null;
+        
+        for (int job = 0; job < this.jobs; job++)
+        {
+            // Each job writes its own archive, as Main does for each source.
+            zipper = this.tree.zipper().date("run" + job).threads(this.threads).build();
+            zipper.run();
+            throughput.add(zipper.scan());
+        }
+        return zipper;
+    }
+}
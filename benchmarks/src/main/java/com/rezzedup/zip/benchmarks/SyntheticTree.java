@@ -0,0 +1,134 @@
+package com.rezzedup.zip.benchmarks;
+
+import com.rezzedup.zip.DirectoryZipper;
+import com.rezzedup.zip.Main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * A generated source directory in a temp folder. Every eighth file sits at
+ * the top level and the rest are spread over two levels of subdirectories,
+ * so non-recursive zips still have some work to do.
+ * <p>
+ * Compressibility is the share of each file filled with repeated text; the
+ * rest is random bytes. 0 gives incompressible files, 1 gives nearly free ones.
+ */
+final class SyntheticTree
+{
+    private static final byte[] TEXT = "the quick brown fox jumps over the lazy dog. ".getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCK = 1024;
+    
+    private final Path root;
+    private final Path source;
+    private final Path output;
+    
+    private SyntheticTree(Path root)
+    {
+        this.root = root;
+        this.source = root.resolve("tree");
+        this.output = root.resolve("zip");
+    }
+    
+    static SyntheticTree generate(int files, int fileSize, double compressibility) throws IOException
+    {
+        SyntheticTree tree = new SyntheticTree(Files.createTempDirectory("zip-it-bench"));
+        Files.createDirectories(tree.output);
+        
+        Random random = new Random(files * 31L + fileSize);
+        byte[] data = new byte[fileSize];
+        
+        for (int i = 0; i < files; i++)
+        {
+            Path directory = (i % 8 == 0) ? tree.source : tree.source.resolve("d" + (i % 16)).resolve("s" + (i / 16 % 8));
+            Files.createDirectories(directory);
+            
+            fill(data, random, compressibility);
+            
+            try (OutputStream out = Files.newOutputStream(directory.resolve("file" + i + ((i % 3 == 0) ? ".txt" : ".dat"))))
+            {
+                out.write(data);
+            }
+        }
+        return tree;
+    }
+    
+    private static void fill(byte[] data, Random random, double compressibility)
+    {
+        int text = (int) Math.round(BLOCK * compressibility);
+        
+        for (int block = 0; block < data.length; block += BLOCK)
+        {
+            int end = Math.min(data.length, block + BLOCK);
+            int split = Math.min(end, block + text);
+            
+            for (int i = block; i < split; i++)
+            {
+                data[i] = TEXT[i % TEXT.length];
+            }
+            for (int i = split; i < end; i++)
+            {
+                data[i] = (byte) random.nextInt(256);
+            }
+        }
+    }
+    
+    Path getSource()
+    {
+        return this.source;
+    }
+    
+    /**
+     * A zipper for this tree with the same defaults as the command line.
+     */
+    DirectoryZipper.Builder zipper()
+    {
+        return DirectoryZipper.of(this.source.toFile()).output(this.output.toFile()).prefix("bench").date("run").filter(new Main.RegexPathFilter());
+    }
+    
+    /**
+     * Deletes the archives written so far, so the next zip isn't skipped.
+     */
+    void clearOutput() throws IOException
+    {
+        delete(this.output);
+        Files.createDirectories(this.output);
+    }
+    
+    void delete() throws IOException
+    {
+        delete(this.root);
+    }
+    
+    private static void delete(Path path) throws IOException
+    {
+        if (!Files.exists(path))
+        {
+            return;
+        }
+        
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException io) throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
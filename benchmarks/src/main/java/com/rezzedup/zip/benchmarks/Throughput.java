@@ -0,0 +1,33 @@
+package com.rezzedup.zip.benchmarks;
+
+import com.rezzedup.zip.Manifest;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Extra counters reported next to each score. JMH divides them by the
+ * measured time, so they show up as MB/s and files/s.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class Throughput
+{
+    public double megabytes;
+    public long files;
+    
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        this.megabytes = 0;
+        this.files = 0;
+    }
+    
+    void add(Manifest manifest)
+    {
+        this.megabytes += manifest.getTotalBytes() / (1024.0 * 1024.0);
+        this.files += manifest.getTotalFiles();
+    }
+}
@@ -0,0 +1,63 @@
+package com.rezzedup.zip.benchmarks;
+
+import com.rezzedup.zip.Manifest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walking and filtering the source without compressing anything. Mostly
+ * measures the file system, so expect the numbers to depend on the page
+ * cache more than on the code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraversalBenchmark
+{
+    @Param({"10000"})
+    public int files;
+    
+    @Param({"true", "false"})
+    public boolean recursive;
+    
+    private SyntheticTree tree;
+    
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        Silence.start();
+        this.tree = SyntheticTree.generate(this.files, 512, 0.5);
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException
+    {
+        this.tree.delete();
+        Silence.stop();
+    }
+    
+    @Benchmark
+    public Manifest scan(Throughput throughput)
+    {
+        Manifest manifest = this.tree.zipper().recursive(this.recursive).build().scan();
+        throughput.add(manifest);
+        return manifest;
+    }
+}
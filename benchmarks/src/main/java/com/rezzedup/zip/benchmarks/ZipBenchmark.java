@@ -0,0 +1,81 @@
+package com.rezzedup.zip.benchmarks;
+
+import com.rezzedup.zip.DirectoryZipper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole run, from the walk to the renamed archive, across compression
+ * levels, data that compresses well or badly, and both walk modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ZipBenchmark
+{
+    @Param({"2000"})
+    public int files;
+    
+    @Param({"16384"})
+    public int fileSize;
+    
+    @Param({"0.0", "0.5", "0.9"})
+    public double compressibility;
+    
+    @Param({"1", "6", "9"})
+    public int level;
+    
+    @Param({"1"})
+    public int threads;
+    
+    @Param({"true", "false"})
+    public boolean recursive;
+    
+    private SyntheticTree tree;
+    
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        Silence.start();
+        this.tree = SyntheticTree.generate(this.files, this.fileSize, this.compressibility);
+    }
+    
+    @TearDown(Level.Invocation)
+    public void clearOutput() throws IOException
+    {
+        this.tree.clearOutput();
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException
+    {
+        this.tree.delete();
+        Silence.stop();
+    }
+    
+    @Benchmark
+    public DirectoryZipper zip(Throughput throughput)
+    {
+        DirectoryZipper zipper = this.tree.zipper().recursive(this.recursive).level(this.level).threads(this.threads).build();
+        zipper.run();
+        throughput.add(zipper.scan());
+        return zipper;
+    }
+}
@@ -0,0 +1,69 @@
+package com.rezzedup.zip;
+
+/**
+ * The container and codec an archive is written with. Zip is readable
+ * anywhere; the tar formats compress better or faster but are meant for
+ * restoring with tar and the matching decompressor.
+ */
+public enum ArchiveFormat
+{
+    ZIP("zip", ".zip"),
+    TAR_ZSTD("zstd", ".tar.zst"),
+    TAR_LZ4("lz4", ".tar.lz4"),
+    TAR_XZ("xz", ".tar.xz");
+    
+    private final String name;
+    private final String extension;
+    
+    ArchiveFormat(String name, String extension)
+    {
+        this.name = name;
+        this.extension = extension;
+    }
+    
+    /**
+     * The name used to pick this format on the command line.
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+    
+    /**
+     * File extension of finished archives, including the leading dot.
+     */
+    public String getExtension()
+    {
+        return this.extension;
+    }
+    
+    /**
+     * @return the format with the given name, or null if there's none
+     */
+    public static ArchiveFormat byName(String name)
+    {
+        for (ArchiveFormat format : values())
+        {
+            if (format.name.equalsIgnoreCase(name) || format.extension.substring(1).equalsIgnoreCase(name))
+            {
+                return format;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return the format of a finished archive going by its extension, or null if there's none
+     */
+    public static ArchiveFormat byFileName(String name)
+    {
+        for (ArchiveFormat format : values())
+        {
+            if (name.toLowerCase().endsWith(format.extension))
+            {
+                return format;
+            }
+        }
+        return null;
+    }
+}
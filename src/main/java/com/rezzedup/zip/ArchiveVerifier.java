@@ -0,0 +1,303 @@
+package com.rezzedup.zip;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks an archive against the {@link HashManifest} written with it by
+ * decompressing every entry and comparing its SHA-256 with the one taken
+ * while the file was read. Zip entries are checked several at once, as are
+ * the blocks of a solid tar that has its index; any other tar is a single
+ * stream, read front to back on one thread.
+ */
+public final class ArchiveVerifier
+{
+    private final File archive;
+    private final ArchiveFormat format;
+    private final int threads;
+    
+    private final Set<String> checked = ConcurrentHashMap.newKeySet();
+    private final AtomicLong mismatched = new AtomicLong();
+    private final AtomicLong unlisted = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    
+    private HashManifest manifest = null;
+    private boolean failed = false;
+    
+    public ArchiveVerifier(File archive, int threads)
+    {
+        this.archive = archive;
+        this.format = ArchiveFormat.byFileName(archive.getName());
+        this.threads = threads;
+    }
+    
+    public File getManifestFile()
+    {
+        return new File(this.archive.getPath() + DirectoryZipper.HASH_MANIFEST_EXTENSION);
+    }
+    
+    /**
+     * @return whether the archive holds exactly the files of the manifest, each with the same content
+     */
+    public boolean verify() throws IOException
+    {
+        if (this.format == null)
+        {
+            throw new IOException("Not a Zip-It archive: " + this.archive);
+        }
+        
+        this.manifest = HashManifest.load(getManifestFile());
+        
+        Print.line(Ansi.Cyan.and(Ansi.HighIntensity).colorize("Verifying: '" + this.archive + "' against '" + getManifestFile().getName() + "'"));
+        long started = System.nanoTime();
+        File index = new File(this.archive.getPath() + DirectoryZipper.BLOCK_INDEX_EXTENSION);
+        
+        if (this.format == ArchiveFormat.ZIP)
+        {
+            verifyZip();
+        }
+        else if (index.isFile())
+        {
+            verifyBlocks(SolidIndex.load(index));
+        }
+        else
+        {
+            try (InputStream in = SolidIndex.decompressor(new BufferedInputStream(Channels.newInputStream(FileChannel.open(this.archive.toPath(), StandardOpenOption.READ)), 64 * 1024), this.format))
+            {
+                verifyTar(in, -1);
+            }
+        }
+        
+        long missing = 0;
+        
+        for (String name : this.manifest.getNames())
+        {
+            if (!this.checked.contains(name))
+            {
+                Print.notice("  Missing or unreadable", name);
+                missing += 1;
+            }
+        }
+        
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Print.clarify(String.format("  Checked %d of %d entries, %d bytes in %.1f s", this.checked.size(), this.manifest.size(), this.bytes.get(), seconds));
+        
+        if (this.unlisted.get() > 0)
+        {
+            Print.notice("  Not in the manifest, so left unchecked", this.unlisted.get() + " entries");
+        }
+        
+        // An entry that can't be checked can't count as verified either.
+        boolean verified = !this.failed && missing == 0 && this.mismatched.get() == 0 && this.unlisted.get() == 0;
+        
+        if (verified)
+        {
+            Print.status("  Verified.");
+        }
+        else
+        {
+            Print.notice("  Verification failed", this.mismatched.get() + " mismatched, " + missing + " missing or unreadable, " + this.unlisted.get() + " unchecked");
+        }
+        return verified;
+    }
+    
+    private void verifyZip() throws IOException
+    {
+        try (ZipReader zip = new ZipReader(this.archive))
+        {
+            List<Task> tasks = new ArrayList<>();
+            
+            for (ZipReader.Entry entry : zip.getEntries())
+            {
+                if (entry.isDirectory())
+                {
+                    continue;
+                }
+                
+                if (this.manifest.get(entry.getName()) == null)
+                {
+                    this.unlisted.incrementAndGet();
+                    continue;
+                }
+                
+                tasks.add(() ->
+                {
+                    try (InputStream in = zip.open(entry))
+                    {
+                        check(entry.getName(), in, new byte[64 * 1024]);
+                    }
+                    catch (IOException io)
+                    {
+                        throw new IOException("'" + entry.getName() + "': " + io.getMessage(), io);
+                    }
+                });
+            }
+            runAll(tasks);
+        }
+    }
+    
+    private void verifyBlocks(SolidIndex index) throws IOException
+    {
+        if (index.getFormat() != this.format)
+        {
+            throw new IOException("Block index is for " + index.getFormat().getName() + ", not " + this.format.getName());
+        }
+        
+        int[] counts = index.getEntryCounts();
+        List<Task> tasks = new ArrayList<>();
+        
+        for (int block = 0; block < counts.length; block++)
+        {
+            int number = block;
+            long offset = index.getBlockOffset(block);
+            int entries = counts[block];
+            
+            tasks.add(() ->
+            {
+                try (FileChannel channel = FileChannel.open(this.archive.toPath(), StandardOpenOption.READ))
+                {
+                    channel.position(offset);
+                    verifyTar(SolidIndex.decompressor(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024), this.format), entries);
+                }
+                catch (IOException io)
+                {
+                    throw new IOException("block " + number + ": " + io.getMessage(), io);
+                }
+            });
+        }
+        runAll(tasks);
+    }
+    
+    /**
+     * Checks the next {@code entries} entries of a tar stream, or all of them if negative.
+     */
+    private void verifyTar(InputStream in, int entries) throws IOException
+    {
+        TarArchiveInputStream tar = new TarArchiveInputStream(in);
+        byte[] buffer = new byte[64 * 1024];
+        
+        for (int i = 0; entries < 0 || i < entries; i++)
+        {
+            TarArchiveEntry entry = tar.getNextEntry();
+            
+            if (entry == null)
+            {
+                if (entries >= 0)
+                {
+                    throw new IOException("Block ended early, after " + i + " of " + entries + " entries");
+                }
+                return;
+            }
+            
+            if (entry.isDirectory())
+            {
+                continue;
+            }
+            
+            if (this.manifest.get(entry.getName()) == null)
+            {
+                this.unlisted.incrementAndGet();
+                continue;
+            }
+            check(entry.getName(), tar, buffer);
+        }
+    }
+    
+    private void check(String name, InputStream in, byte[] buffer) throws IOException
+    {
+        MessageDigest digest = HashManifest.sha256();
+        long size = 0;
+        int read;
+        
+        while ((read = in.read(buffer)) > 0)
+        {
+            digest.update(buffer, 0, read);
+            size += read;
+        }
+        
+        this.bytes.addAndGet(size);
+        this.checked.add(name);
+        
+        if (!MessageDigest.isEqual(digest.digest(), this.manifest.get(name)))
+        {
+            Print.notice("  Mismatch", name);
+            this.mismatched.incrementAndGet();
+        }
+        else if (Print.isVerbose())
+        {
+            Print.line("  OK: " + name);
+        }
+    }
+    
+    /**
+     * Runs the tasks on up to as many threads as allowed. A task that fails
+     * is reported and fails the verification, leaving its entries unchecked.
+     */
+    private void runAll(List<Task> tasks)
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(this.threads, tasks.size())));
+        
+        try
+        {
+            List<Future<?>> running = new ArrayList<>();
+            
+            for (Task task : tasks)
+            {
+                running.add(pool.submit(() ->
+                {
+                    task.call();
+                    return null;
+                }));
+            }
+            
+            for (Future<?> future : running)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    Print.notice("  Unable to read " + this.archive.getName(), String.valueOf(e.getCause().getMessage()));
+                    this.failed = true;
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    this.failed = true;
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+    
+    // Task
+    
+    @FunctionalInterface
+    private interface Task
+    {
+        void call() throws IOException;
+    }
+}
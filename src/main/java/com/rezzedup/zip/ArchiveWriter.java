@@ -0,0 +1,120 @@
+package com.rezzedup.zip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where {@link DirectoryZipper} puts the entries of one archive. Entries are
+ * written in the order they're added; {@link #finish()} completes the archive.
+ */
+interface ArchiveWriter extends Closeable
+{
+    /**
+     * Called with each entry once it has been written.
+     */
+    void onWritten(Listener listener);
+    
+    /**
+     * Also takes the SHA-256 of every file's content as it's read, for the
+     * listener to get. Must be called before anything is added.
+     */
+    void hashContents();
+    
+    void addDirectory(Manifest.Entry directory) throws IOException;
+    
+    Added addFile(Manifest.Entry file) throws IOException;
+    
+    void addData(String name, byte[] data, long lastModified) throws IOException;
+    
+    void finish() throws IOException;
+    
+    /**
+     * Writes out everything added so far that is still buffered or being compressed.
+     */
+    void flush() throws IOException;
+    
+    /**
+     * Size of the archive so far, in bytes.
+     */
+    long getBytesWritten();
+    
+    /**
+     * Most the archive can still grow by if nothing else is added: data added
+     * but not yet written, plus whatever {@link #finish()} appends.
+     */
+    long getPendingBytes();
+    
+    /**
+     * Keeps the archive to {@code limit} bytes by its real size: once writing
+     * an entry takes it past, that entry and every one after it is taken back
+     * out, to be added to another archive from {@link #getOverflow()}. The
+     * first entry stays however large it is. Must be called before anything
+     * is added.
+     *
+     * @return false if this writer can't take entries back, and so can't
+     */
+    default boolean limitTo(long limit)
+    {
+        return false;
+    }
+    
+    /**
+     * The entries taken back to keep to the limit, in the order they were
+     * added. Only complete once the archive is finished.
+     */
+    default List<Overflow> getOverflow()
+    {
+        return Collections.emptyList();
+    }
+    
+    /**
+     * Generous upper bound on how much adding an entry grows an archive,
+     * covering headers and what compression adds to incompressible data.
+     */
+    static long sizeBound(String name, long size)
+    {
+        return size + size / 1000 + 2048 + 3L * name.length();
+    }
+    
+    // Added
+    
+    /**
+     * How a file ended up in the archive.
+     */
+    enum Added
+    {
+        COMPRESSED,
+        STORED,
+        REUSED,
+        DUPLICATE,
+        
+        /**
+         * Gone by the time it was to be read, and left out.
+         */
+        MISSING
+    }
+    
+    // Overflow
+    
+    /**
+     * An entry taken back out of one archive, as it was added.
+     */
+    @FunctionalInterface
+    interface Overflow
+    {
+        void addTo(ArchiveWriter archive) throws IOException;
+    }
+    
+    // Listener
+    
+    @FunctionalInterface
+    interface Listener
+    {
+        /**
+         * @param hash SHA-256 of the content, or null if it wasn't hashed
+         */
+        void written(String name, long size, long lastModified, long crc, byte[] hash);
+    }
+}
@@ -0,0 +1,185 @@
+package com.rezzedup.zip;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes lines to a stream from a background thread, in batches with one
+ * flush each, so callers never wait on a slow terminal. The queue is bounded:
+ * if the terminal really can't keep up, callers block rather than letting
+ * memory grow.
+ */
+final class AsyncConsole implements Closeable
+{
+    private static final int CAPACITY = 16 * 1024;
+    private static final int BATCH_SIZE = 1024;
+    
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(CAPACITY);
+    private final PrintStream stream;
+    private final Writer writer;
+    private final Thread thread;
+    
+    private final Object progress = new Object();
+    private long enqueued = 0;
+    private long written = 0;
+    
+    private boolean closed = false;
+    
+    AsyncConsole(PrintStream stream)
+    {
+        this.stream = stream;
+        this.writer = new BufferedWriter(new OutputStreamWriter(stream), 64 * 1024);
+        this.thread = new Thread(this::run, "zip-it-console");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Queues a line, or once closed prints it directly after whatever is
+     * still queued, so a line racing {@link #close()} isn't lost.
+     */
+    void enqueue(String line)
+    {
+        boolean direct;
+        
+        synchronized (this.progress)
+        {
+            direct = this.closed;
+            
+            if (!direct)
+            {
+                this.enqueued += 1;
+            }
+        }
+        
+        if (direct)
+        {
+            flush();
+            this.stream.println(line);
+            return;
+        }
+        
+        try
+        {
+            this.queue.put(line);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            this.stream.println(line);
+            markWritten(1);
+        }
+    }
+    
+    /**
+     * Blocks until every line queued before this call has been written.
+     */
+    void flush()
+    {
+        synchronized (this.progress)
+        {
+            long target = this.enqueued;
+            
+            while (this.written < target && this.thread.isAlive())
+            {
+                try
+                {
+                    this.progress.wait(100);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        synchronized (this.progress)
+        {
+            this.closed = true;
+        }
+        
+        try
+        {
+            this.thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void run()
+    {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        String separator = System.lineSeparator();
+        
+        while (!isDone())
+        {
+            try
+            {
+                String first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                
+                if (first == null)
+                {
+                    continue;
+                }
+                
+                batch.add(first);
+                this.queue.drainTo(batch, BATCH_SIZE - 1);
+                
+                for (String line : batch)
+                {
+                    this.writer.write(line);
+                    this.writer.write(separator);
+                }
+                this.writer.flush();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (IOException io)
+            {
+                io.printStackTrace();
+            }
+            
+            markWritten(batch.size());
+            batch.clear();
+        }
+    }
+    
+    /**
+     * Whether closed with every line counted in written. No more can be
+     * counted once closed, though some may still be on their way into the queue.
+     */
+    private boolean isDone()
+    {
+        synchronized (this.progress)
+        {
+            return this.closed && this.written >= this.enqueued;
+        }
+    }
+    
+    private void markWritten(long lines)
+    {
+        synchronized (this.progress)
+        {
+            this.written += lines;
+            this.progress.notifyAll();
+        }
+    }
+}
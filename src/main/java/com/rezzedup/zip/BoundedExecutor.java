@@ -0,0 +1,72 @@
+package com.rezzedup.zip;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a shared executor, no more than a fixed number at a time and
+ * in the order they were submitted, so several users can share one set of
+ * threads without any of them taking more than its share.
+ */
+final class BoundedExecutor implements Executor
+{
+    private final Executor shared;
+    private final int limit;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    
+    BoundedExecutor(Executor shared, int limit)
+    {
+        this.shared = shared;
+        this.limit = limit;
+    }
+    
+    @Override
+    public void execute(Runnable task)
+    {
+        this.queue.add(task);
+        startRunner();
+    }
+    
+    private void startRunner()
+    {
+        while (!this.queue.isEmpty())
+        {
+            int current = this.running.get();
+            
+            if (current >= this.limit)
+            {
+                return;
+            }
+            
+            if (this.running.compareAndSet(current, current + 1))
+            {
+                this.shared.execute(this::drain);
+                return;
+            }
+        }
+    }
+    
+    private void drain()
+    {
+        try
+        {
+            for (Runnable task = this.queue.poll(); task != null; task = this.queue.poll())
+            {
+                task.run();
+                
+                // A cancelled task may have interrupted this thread, which goes on to other work.
+                Thread.interrupted();
+            }
+        }
+        finally
+        {
+            this.running.decrementAndGet();
+        }
+        
+        // Picks up a task queued after the last poll, while this runner still counted as running.
+        startRunner();
+    }
+}
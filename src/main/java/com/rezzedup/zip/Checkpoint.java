@@ -0,0 +1,299 @@
+package com.rezzedup.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of a zip being written, from which an interrupted run carries on
+ * instead of starting over.
+ * <p>
+ * Every so often, once the archive has been synced to disk, a block is
+ * appended holding the archive's length, the central directory records
+ * added since the previous block and the entries they describe. Blocks
+ * are checksummed, so one cut short by a crash is ignored and the run
+ * resumes from the block before it: the archive is truncated to the length
+ * recorded there and the central directory rebuilt from the journal.
+ */
+final class Checkpoint implements Closeable
+{
+    private static final long MAGIC = 0x5A49502D49544350L; // "ZIP-ITCP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4;
+    private static final int MAX_BLOCK = 1 << 30;
+    
+    private final File file;
+    private final long interval;
+    private final DataOutputStream journal;
+    private final FileOutputStream output;
+    private final List<Record> unsaved = new ArrayList<>();
+    
+    private final long offset;
+    private final long entries;
+    private final byte[] central;
+    private final List<Record> records;
+    
+    private int centralSize;
+    private long lastCommit = System.nanoTime();
+    
+    private Checkpoint(File file, long interval, long offset, long entries, byte[] central, List<Record> records) throws IOException
+    {
+        this.file = file;
+        this.interval = interval;
+        this.offset = offset;
+        this.entries = entries;
+        this.central = central;
+        this.records = records;
+        this.centralSize = central.length;
+        this.output = new FileOutputStream(file, true);
+        this.journal = new DataOutputStream(new BufferedOutputStream(this.output));
+    }
+    
+    /**
+     * Starts a new, empty journal, replacing any existing one.
+     *
+     * @param interval least time between checkpoints
+     */
+    static Checkpoint start(File file, long interval, TimeUnit unit) throws IOException
+    {
+        try (DataOutputStream header = new DataOutputStream(new FileOutputStream(file)))
+        {
+            header.writeLong(MAGIC);
+            header.writeInt(VERSION);
+        }
+        return new Checkpoint(file, unit.toNanos(interval), 0, 0, new byte[0], Collections.emptyList());
+    }
+    
+    /**
+     * Reads the journal of an interrupted run and drops any block cut short.
+     *
+     * @param archiveLength current length of the archive the journal belongs to
+     * @return the checkpoint to carry on from, or null if nothing in the journal is usable
+     */
+    static Checkpoint resume(File file, long archiveLength, long interval, TimeUnit unit) throws IOException
+    {
+        long offset = 0;
+        long entries = 0;
+        long valid = HEADER_SIZE;
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        List<Record> records = new ArrayList<>();
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readLong() != MAGIC || in.readInt() != VERSION)
+            {
+                return null;
+            }
+            
+            while (true)
+            {
+                byte[] block;
+                
+                try
+                {
+                    int length = in.readInt();
+                    
+                    if (length < 0 || length > MAX_BLOCK)
+                    {
+                        break;
+                    }
+                    
+                    block = new byte[length];
+                    in.readFully(block);
+                    
+                    CRC32 crc = new CRC32();
+                    crc.update(block);
+                    
+                    if (in.readLong() != crc.getValue())
+                    {
+                        break;
+                    }
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(block));
+                offset = data.readLong();
+                entries = data.readLong();
+                
+                for (int i = data.readInt(); i > 0; i--)
+                {
+                    records.add(new Record(data.readUTF(), data.readLong(), data.readLong(), data.readLong()));
+                }
+                
+                byte[] directory = new byte[data.readInt()];
+                data.readFully(directory);
+                central.write(directory);
+                
+                valid += 4 + block.length + 8;
+            }
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+        
+        if (offset == 0 || offset > archiveLength)
+        {
+            return null;
+        }
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            channel.truncate(valid);
+        }
+        return new Checkpoint(file, unit.toNanos(interval), offset, entries, central.toByteArray(), records);
+    }
+    
+    /**
+     * Length of the archive as of the resumed checkpoint, 0 for a new journal.
+     */
+    long getOffset()
+    {
+        return this.offset;
+    }
+    
+    long getEntryCount()
+    {
+        return this.entries;
+    }
+    
+    /**
+     * Central directory records of every entry in the first {@link #getOffset()} bytes.
+     */
+    byte[] getCentralDirectory()
+    {
+        return this.central;
+    }
+    
+    /**
+     * Entries already in the archive as of the resumed checkpoint.
+     */
+    List<Record> getRecords()
+    {
+        return this.records;
+    }
+    
+    /**
+     * Notes an entry written since the last checkpoint.
+     */
+    void add(ZipWriter.Entry entry)
+    {
+        this.unsaved.add(new Record(entry.getName(), entry.getSize(), entry.getLastModified(), entry.getCrc()));
+    }
+    
+    boolean isDue()
+    {
+        return System.nanoTime() - this.lastCommit >= this.interval;
+    }
+    
+    /**
+     * Records the state of {@code writer}, whose output must already be on disk.
+     */
+    void commit(ZipWriter writer) throws IOException
+    {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(block);
+        
+        data.writeLong(writer.getBytesWritten());
+        data.writeLong(writer.getEntryCount());
+        data.writeInt(this.unsaved.size());
+        
+        for (Record record : this.unsaved)
+        {
+            data.writeUTF(record.name);
+            data.writeLong(record.size);
+            data.writeLong(record.lastModified);
+            data.writeLong(record.crc);
+        }
+        
+        int centralSize = writer.getCentralDirectorySize();
+        data.writeInt(centralSize - this.centralSize);
+        writer.writeCentralDirectory(data, this.centralSize);
+        data.flush();
+        
+        CRC32 crc = new CRC32();
+        crc.update(block.toByteArray());
+        
+        this.journal.writeInt(block.size());
+        block.writeTo(this.journal);
+        this.journal.writeLong(crc.getValue());
+        this.journal.flush();
+        this.output.getFD().sync();
+        
+        this.centralSize = centralSize;
+        this.unsaved.clear();
+        this.lastCommit = System.nanoTime();
+    }
+    
+    /**
+     * Closes and deletes the journal once the archive is complete.
+     */
+    void delete() throws IOException
+    {
+        close();
+        this.file.delete();
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        this.journal.close();
+    }
+    
+    // Record
+    
+    static final class Record
+    {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final long crc;
+        
+        private Record(String name, long size, long lastModified, long crc)
+        {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+        
+        String getName()
+        {
+            return this.name;
+        }
+        
+        long getSize()
+        {
+            return this.size;
+        }
+        
+        long getLastModified()
+        {
+            return this.lastModified;
+        }
+        
+        long getCrc()
+        {
+            return this.crc;
+        }
+    }
+}
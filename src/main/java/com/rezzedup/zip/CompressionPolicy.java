@@ -0,0 +1,184 @@
+package com.rezzedup.zip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Picks how each file is compressed. The uniform policy deflates everything
+ * at the zip's level. The adaptive one stores files whose extension marks
+ * them as already compressed, and for other files of some size deflates a
+ * sample from the start, storing the file if the sample barely shrinks.
+ */
+public final class CompressionPolicy
+{
+    private static final String[] COMPRESSED = {
+        "zip", "jar", "war", "apk", "gz", "tgz", "bz2", "xz", "zst", "lz4", "7z", "rar",
+        "png", "jpg", "jpeg", "gif", "webp", "avif", "heic",
+        "ogg", "oga", "opus", "mp3", "m4a", "aac", "flac",
+        "mp4", "m4v", "mkv", "webm", "mov", "avi",
+        "mca", "mcr", "woff", "woff2", "docx", "xlsx", "pptx", "odt"
+    };
+    
+    private static final int PROBE_SIZE = 8 * 1024;
+    private static final long PROBE_MIN_SIZE = 64 * 1024;
+    private static final double PROBE_MIN_SAVING = 0.05;
+    
+    private final boolean adaptive;
+    private final Set<String> storedExtensions = new HashSet<>();
+    private IoLimits limits = IoLimits.unlimited();
+    
+    private final byte[] sample = new byte[PROBE_SIZE];
+    private final byte[] deflated = new byte[PROBE_SIZE + 64];
+    private long probes = 0;
+    private long probeNanos = 0;
+    
+    private CompressionPolicy(boolean adaptive)
+    {
+        this.adaptive = adaptive;
+    }
+    
+    /**
+     * Deflates every file at the zip's level.
+     */
+    public static CompressionPolicy uniform()
+    {
+        return new CompressionPolicy(false);
+    }
+    
+    /**
+     * Stores already compressed formats and files that fail the sample probe.
+     */
+    public static CompressionPolicy adaptive()
+    {
+        return new CompressionPolicy(true).store(COMPRESSED);
+    }
+    
+    /**
+     * Also stores files with these extensions, given without the dot.
+     */
+    public CompressionPolicy store(String ... extensions)
+    {
+        for (String extension : extensions)
+        {
+            this.storedExtensions.add(extension.toLowerCase(Locale.ROOT));
+        }
+        return this;
+    }
+    
+    public boolean isAdaptive()
+    {
+        return this.adaptive;
+    }
+    
+    /**
+     * A fresh policy with the same settings, as the probe buffers aren't shared
+     * between threads, that probes files under {@code limits}.
+     */
+    CompressionPolicy copy(IoLimits limits)
+    {
+        CompressionPolicy copy = new CompressionPolicy(this.adaptive);
+        copy.storedExtensions.addAll(this.storedExtensions);
+        copy.limits = limits;
+        return copy;
+    }
+    
+    /**
+     * The level to compress a file at, where {@link Deflater#NO_COMPRESSION} means STORED.
+     */
+    int levelFor(Manifest.Entry entry, int level)
+    {
+        if (!this.adaptive || level == Deflater.NO_COMPRESSION)
+        {
+            return level;
+        }
+        
+        if (this.storedExtensions.contains(extension(entry.getName())))
+        {
+            return Deflater.NO_COMPRESSION;
+        }
+        
+        if (entry.getSize() >= PROBE_MIN_SIZE && !probe(entry))
+        {
+            return Deflater.NO_COMPRESSION;
+        }
+        return level;
+    }
+    
+    long getProbes()
+    {
+        return this.probes;
+    }
+    
+    long getProbeNanos()
+    {
+        return this.probeNanos;
+    }
+    
+    /**
+     * Whether a quick deflate of the start of the file saves enough to be worth it.
+     */
+    private boolean probe(Manifest.Entry entry)
+    {
+        this.limits.open();
+        this.limits.read(PROBE_SIZE);
+        
+        long started = System.nanoTime();
+        
+        try (FileChannel channel = FileChannel.open(entry.getPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(this.sample);
+            
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+            
+            int length = buffer.position();
+            Pool<Deflater> deflaters = DeflatePipeline.deflaters(Deflater.BEST_SPEED);
+            Deflater deflater = deflaters.take();
+            
+            try
+            {
+                deflater.setInput(this.sample, 0, length);
+                deflater.finish();
+                
+                int size = 0;
+                
+                while (!deflater.finished() && size < this.deflated.length)
+                {
+                    size += deflater.deflate(this.deflated, size, this.deflated.length - size);
+                }
+                return deflater.finished() && size <= length * (1 - PROBE_MIN_SAVING);
+            }
+            finally
+            {
+                deflater.reset();
+                deflaters.give(deflater);
+            }
+        }
+        catch (IOException io)
+        {
+            // Let the real read report it.
+            return true;
+        }
+        finally
+        {
+            this.probes += 1;
+            this.probeNanos += System.nanoTime() - started;
+        }
+    }
+    
+    private static String extension(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        
+        if (dot < 0 || dot < name.lastIndexOf('/'))
+        {
+            return "";
+        }
+        return name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
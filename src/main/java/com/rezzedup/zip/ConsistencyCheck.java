@@ -0,0 +1,222 @@
+package com.rezzedup.zip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Notices files that change while they're being archived, by comparing
+ * their size and modification time just before they're read with what they
+ * are right after they were last read, a {@link Snapshot} taken by whoever
+ * read them.
+ * <p>
+ * Writers that can take an entry back re-read a changed file, up to a fixed
+ * number of times; otherwise, or once out of retries, it stays in the archive
+ * as it was read. Either way it ends up in the report, so nothing torn goes
+ * unnoticed. Only ever used from the thread adding entries.
+ */
+final class ConsistencyCheck
+{
+    private final int retries;
+    private final Map<String, Change> retrying = new HashMap<>();
+    private final List<Change> changes = new ArrayList<>();
+    
+    /**
+     * @param retries most times a changed file is read again
+     */
+    ConsistencyCheck(int retries)
+    {
+        this.retries = retries;
+    }
+    
+    /**
+     * Looks at the file again right before it's read.
+     *
+     * @return the file as it is now, to be archived in place of what the walk
+     *         saw, or null if it has disappeared since, which is reported
+     */
+    Manifest.Entry before(Manifest.Entry listed)
+    {
+        BasicFileAttributes attributes = stat(listed.getPath());
+        
+        if (attributes == null)
+        {
+            Change previous = this.retrying.remove(listed.getName());
+            Change gone = (previous == null) ? new Change(listed.getName(), 0, "deleted since the walk") : previous;
+            this.changes.add(gone.outcome("gone before it could be read, left out", false));
+            return null;
+        }
+        return new Manifest.Entry(listed.getPath(), listed.getName(), false, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+    
+    /**
+     * Compares the file with how it was before it was read.
+     *
+     * @param before     what {@link #before(Manifest.Entry)} returned
+     * @param read       bytes that went into the archive
+     * @param rewindable whether the caller can take the entry back and read the file again
+     * @return true if the entry should be taken back and the file read again
+     */
+    boolean after(Manifest.Entry before, long read, boolean rewindable)
+    {
+        return after(before, read, Snapshot.of(before.getPath()), rewindable);
+    }
+    
+    /**
+     * Compares the file with how it was before it was read, as it was when
+     * {@code snapshot} was taken rather than as it is now.
+     */
+    boolean after(Manifest.Entry before, long read, Snapshot snapshot, boolean rewindable)
+    {
+        String name = before.getName();
+        Change previous = this.retrying.remove(name);
+        int attempts = (previous == null) ? 0 : previous.attempts;
+        String difference = difference(before, read, snapshot.attributes);
+        
+        if (difference == null)
+        {
+            if (previous != null)
+            {
+                this.changes.add(previous.outcome("consistent after " + retries(attempts), true));
+            }
+            return false;
+        }
+        
+        Change change = new Change(name, attempts + 1, difference);
+        
+        if (rewindable && attempts < this.retries)
+        {
+            this.retrying.put(name, change);
+            return true;
+        }
+        
+        String outcome = (attempts == 0) ? "archived as read" : "still changing after " + retries(attempts) + ", archived as read";
+        this.changes.add(change.outcome(outcome, false));
+        return false;
+    }
+    
+    private static String retries(int count)
+    {
+        return count + ((count == 1) ? " retry" : " retries");
+    }
+    
+    private static String difference(Manifest.Entry before, long read, BasicFileAttributes after)
+    {
+        if (after == null)
+        {
+            return "deleted while being read";
+        }
+        
+        List<String> differences = new ArrayList<>();
+        
+        if (after.size() != before.getSize())
+        {
+            differences.add("size " + before.getSize() + " -> " + after.size());
+        }
+        else if (read != before.getSize())
+        {
+            differences.add("read " + read + " of " + before.getSize() + " bytes");
+        }
+        
+        if (after.lastModifiedTime().toMillis() != before.getLastModified())
+        {
+            differences.add("modified");
+        }
+        return (differences.isEmpty()) ? null : String.join(", ", differences);
+    }
+    
+    private static BasicFileAttributes stat(Path file)
+    {
+        try
+        {
+            // Through links, as that's what's read.
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        }
+        catch (IOException io)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Files that changed while being read and are in the archive as read, or missing from it.
+     */
+    long getInconsistentCount()
+    {
+        return this.changes.stream().filter(change -> !change.recovered).count();
+    }
+    
+    /**
+     * Lists every file that changed while being read, and what became of it.
+     */
+    void report()
+    {
+        if (this.changes.isEmpty())
+        {
+            return;
+        }
+        
+        long inconsistent = getInconsistentCount();
+        Print.notice("  " + this.changes.size() + " files changed while being read", inconsistent + " inconsistent, " + (this.changes.size() - inconsistent) + " read again");
+        
+        for (Change change : this.changes)
+        {
+            Print.notice("    " + change.name, change.difference + "; " + change.outcome);
+        }
+    }
+    
+    // Snapshot
+    
+    /**
+     * A file's size and modification time at some moment, or that it was gone.
+     * Safe to take on any thread.
+     */
+    static final class Snapshot
+    {
+        private final BasicFileAttributes attributes;
+        
+        private Snapshot(BasicFileAttributes attributes)
+        {
+            this.attributes = attributes;
+        }
+        
+        static Snapshot of(Path file)
+        {
+            return new Snapshot(stat(file));
+        }
+    }
+    
+    // Change
+    
+    private static final class Change
+    {
+        private final String name;
+        private final int attempts;
+        private final String difference;
+        
+        private String outcome = "";
+        private boolean recovered = false;
+        
+        /**
+         * @param attempts how many times the file has been read again, counting the one about to happen
+         */
+        private Change(String name, int attempts, String difference)
+        {
+            this.name = name;
+            this.attempts = attempts;
+            this.difference = difference;
+        }
+        
+        private Change outcome(String outcome, boolean recovered)
+        {
+            this.outcome = outcome;
+            this.recovered = recovered;
+            return this;
+        }
+    }
+}
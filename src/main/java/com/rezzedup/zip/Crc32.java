@@ -0,0 +1,92 @@
+package com.rezzedup.zip;
+
+/**
+ * CRC-32 helpers missing from {@link java.util.zip.CRC32}.
+ */
+final class Crc32
+{
+    private static final long POLYNOMIAL = 0xEDB88320L;
+    
+    private Crc32() {}
+    
+    /**
+     * Combines the crc of two consecutive blocks into the crc of both,
+     * given only the length of the second block (zlib's crc32_combine).
+     */
+    static long combine(long crc1, long crc2, long length2)
+    {
+        if (length2 <= 0)
+        {
+            return crc1;
+        }
+        
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        
+        // Operator for one zero bit.
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        
+        for (int n = 1; n < 32; n++)
+        {
+            odd[n] = row;
+            row <<= 1;
+        }
+        
+        square(even, odd); // two zero bits
+        square(odd, even); // four zero bits
+        
+        // Apply length2 zero bytes to crc1, one squaring per bit of length2.
+        do
+        {
+            square(even, odd);
+            
+            if ((length2 & 1) != 0)
+            {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            
+            if (length2 == 0)
+            {
+                break;
+            }
+            
+            square(odd, even);
+            
+            if ((length2 & 1) != 0)
+            {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        }
+        while (length2 != 0);
+        
+        return (crc1 ^ crc2) & 0xFFFFFFFFL;
+    }
+    
+    private static long times(long[] matrix, long vector)
+    {
+        long sum = 0;
+        int i = 0;
+        
+        while (vector != 0)
+        {
+            if ((vector & 1) != 0)
+            {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+    
+    private static void square(long[] square, long[] matrix)
+    {
+        for (int n = 0; n < 32; n++)
+        {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,969 @@
+package com.rezzedup.zip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compresses entries on a pool of worker threads and hands the results to a
+ * {@link ZipWriter} in the order they were added.
+ * <p>
+ * Files are cut into fixed-size chunks which are deflated independently,
+ * pigz-style: every chunk but the last ends on a sync flush so the pieces
+ * concatenate into one valid deflate stream, and each chunk is primed with
+ * the 32 KB preceding it so the ratio stays close to a single-threaded run.
+ * Chunk boundaries don't depend on the thread count, so the archive is the
+ * same no matter how many workers produced it.
+ * <p>
+ * At level 0 files become STORED entries. Those that fit a pooled chunk
+ * buffer are read into one; any larger are checksummed through a memory map
+ * and sent to the archive with {@code transferTo}, so their data never
+ * passes through the heap. Files from {@link #LARGE_FILE} up are opened once
+ * for all their chunks.
+ * <p>
+ * Deflaters and chunk buffers come from pools shared by every pipeline in
+ * the process and go back once the chunk is written, so zipping many small
+ * files, or many sources one after another, doesn't allocate a deflater's
+ * native state or a fresh buffer per entry. Workers are shared the same way,
+ * each pipeline running at most its own number of tasks at once.
+ * <p>
+ * With prefetching, chunks of files under {@link #LARGE_FILE} are read on
+ * separate reader tasks and only handed to the workers once read, so the
+ * next files are opened and read while earlier ones are deflating. As many
+ * chunks as are prefetched may be waiting to be written, so that's what
+ * bounds the buffers held: one input and one output buffer per chunk.
+ * <p>
+ * Entries can be hashed with SHA-256 as they're read. A file read in one
+ * piece is hashed on the worker that read it; pieces of larger files keep
+ * their input until written and are hashed in order on the adding thread,
+ * since a digest can't be put together from parts taken separately. Entries
+ * copied from an earlier archive are inflated on the workers to be hashed,
+ * unless their hash is already known.
+ */
+final class DeflatePipeline implements Closeable
+{
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final long LARGE_FILE = 16 * 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final long MAP_REGION = 64 * 1024 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MAX_READERS = 8;
+    private static final int INPUT_SIZE = DICTIONARY_SIZE + CHUNK_SIZE;
+    private static final int OUTPUT_SIZE = outputBound(CHUNK_SIZE);
+    
+    private static final Chunk EMPTY = new Chunk(new byte[0], 0, 0, 0);
+    
+    // Caps what's kept idle; a pool only ever holds as many as were in use at once.
+    private static final int POOLED = Math.max(64, Runtime.getRuntime().availableProcessors() * (CHUNKS_PER_THREAD + 1));
+    private static final int POOLED_DEFLATERS = Math.max(16, Runtime.getRuntime().availableProcessors());
+    
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(new WorkerFactory());
+    
+    private static final Pool<byte[]> INPUTS = new Pool<>(POOLED, () -> new byte[INPUT_SIZE], buffer -> {});
+    private static final Pool<byte[]> OUTPUTS = new Pool<>(POOLED, () -> new byte[OUTPUT_SIZE], buffer -> {});
+    private static final List<Pool<Deflater>> DEFLATERS = new ArrayList<>();
+    private static final Pool<MessageDigest> DIGESTS = new Pool<>(POOLED_DEFLATERS, HashManifest::sha256, digest -> {});
+    
+    static
+    {
+        for (int level = Deflater.DEFAULT_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++)
+        {
+            int pooled = level;
+            DEFLATERS.add(new Pool<>(POOLED_DEFLATERS, () -> new Deflater(pooled, true), Deflater::end));
+        }
+    }
+    
+    private final ZipWriter writer;
+    private final int level;
+    private final int window;
+    private final BoundedExecutor workers;
+    private final BoundedExecutor readers;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private final JobMetrics metrics;
+    private final IoLimits limits;
+    
+    private Consumer<ZipWriter.Entry> listener = entry -> {};
+    private MessageDigest entryDigest = null;
+    private HashManifest knownHashes = null;
+    private boolean hashCopies = false;
+    private Map<ZipWriter.Entry, Reads> snapshots = null;
+    private long entryCrc = 0;
+    private long entrySize = 0;
+    private long waited = 0;
+    
+    /**
+     * @param prefetch how many chunks to read ahead of the workers, or 0 to read them on the workers
+     * @param metrics  where read, deflate, write and wait times are added up
+     * @param limits   what source files are opened and read under
+     */
+    DeflatePipeline(ZipWriter writer, int threads, int level, int prefetch, JobMetrics metrics, IoLimits limits)
+    {
+        this.writer = writer;
+        this.level = level;
+        this.metrics = metrics;
+        this.limits = limits;
+        this.window = Math.max(threads * CHUNKS_PER_THREAD, prefetch);
+        this.workers = new BoundedExecutor(WORKERS, threads);
+        this.readers = (prefetch > 0) ? new BoundedExecutor(WORKERS, Math.min(prefetch, MAX_READERS)) : null;
+    }
+    
+    /**
+     * Called on the adding thread with each entry once it has been written.
+     */
+    void onWritten(Consumer<ZipWriter.Entry> listener)
+    {
+        this.listener = listener;
+    }
+    
+    /**
+     * Takes the SHA-256 of every file and data entry from here on, noted on its entry.
+     */
+    void hashContents()
+    {
+        this.entryDigest = HashManifest.sha256();
+    }
+    
+    /**
+     * When hashing, also hashes copied entries, except those {@code known}
+     * already has a hash for, which may be null.
+     */
+    void hashCopies(HashManifest known)
+    {
+        this.hashCopies = true;
+        this.knownHashes = known;
+    }
+    
+    /**
+     * Takes a snapshot of every file from here on right after its last chunk
+     * is read, for the consistency check to compare with once it's written.
+     */
+    void snapshotReads()
+    {
+        this.snapshots = new HashMap<>();
+    }
+    
+    /**
+     * The snapshot taken of an entry's file right after it was last read, or
+     * null if none was: when not asked to, or for a STORED file too large to
+     * hold, which is read for the last time as it's written.
+     */
+    ConsistencyCheck.Snapshot snapshot(ZipWriter.Entry entry)
+    {
+        Reads reads = (this.snapshots == null) ? null : this.snapshots.remove(entry);
+        return (reads == null) ? null : reads.snapshot;
+    }
+    
+    void addDirectory(String name, long lastModified) throws IOException
+    {
+        ZipWriter.Entry entry = ZipWriter.Entry.directory(name, lastModified);
+        enqueue(new Pending(entry, true, true, CompletableFuture.completedFuture(EMPTY)));
+    }
+    
+    ZipWriter.Entry addFile(String name, Path file, long length, long lastModified) throws IOException
+    {
+        return addFile(name, file, length, lastModified, this.level);
+    }
+    
+    /**
+     * Queues a file at its own compression level, where 0 makes a STORED entry.
+     */
+    ZipWriter.Entry addFile(String name, Path file, long length, long lastModified, int level) throws IOException
+    {
+        boolean store = level == Deflater.NO_COMPRESSION;
+        ZipWriter.Entry entry = new ZipWriter.Entry(name, (store) ? ZipEntry.STORED : ZipEntry.DEFLATED, lastModified);
+        
+        // Nothing to deflate when storing, so when prefetching it's all reading.
+        Executor reading = (this.readers == null) ? this.workers : this.readers;
+        Reads reads = (this.snapshots == null || (store && length > INPUT_SIZE)) ? null : new Reads(file, (store) ? 1 : chunks(length));
+        
+        if (reads != null)
+        {
+            this.snapshots.put(entry, reads);
+        }
+        
+        if (store && length <= INPUT_SIZE)
+        {
+            Future<Chunk> chunk = submit(reading, () -> stored(file, (int) length, reads));
+            enqueue(new Pending(entry, true, true, chunk));
+            return entry;
+        }
+        
+        if (store)
+        {
+            // Held open until written, so only a chunk buffer's worth of any stored file is ever on the heap.
+            FileChannel channel = open(file);
+            Future<Chunk> crc = submit(reading, () -> checksum(channel, length));
+            enqueue(new Pending(entry, crc, channel));
+            return entry;
+        }
+        
+        if (length < LARGE_FILE)
+        {
+            if (this.readers != null)
+            {
+                addChunks(entry, length, null, (offset, size, last) -> prefetch(file, offset, size, last, level, reads));
+                return entry;
+            }
+            
+            addChunks(entry, length, null, (offset, size, last) -> submit(() ->
+            {
+                try (FileChannel channel = open(file))
+                {
+                    return compress(channel, offset, size, last, level, reads);
+                }
+            }));
+            return entry;
+        }
+        
+        // Large files are opened once for all their chunks and closed once the last one is written.
+        FileChannel channel = open(file);
+        addChunks(entry, length, channel, (offset, size, last) -> submit(() -> compress(channel, offset, size, last, level, reads)));
+        return entry;
+    }
+    
+    private FileChannel open(Path file) throws IOException
+    {
+        this.metrics.addThrottle(this.limits.open());
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+    
+    private <T> Future<T> submit(Callable<T> task)
+    {
+        return submit(this.workers, task);
+    }
+    
+    private static <T> Future<T> submit(Executor executor, Callable<T> task)
+    {
+        FutureTask<T> future = new FutureTask<>(task);
+        executor.execute(future);
+        return future;
+    }
+    
+    /**
+     * Reads a chunk on the readers and deflates it on the workers once it's read.
+     */
+    private Future<Chunk> prefetch(Path file, long offset, int size, boolean last, int level, Reads reads)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            try (FileChannel channel = open(file))
+            {
+                return fetch(channel, offset, size, reads);
+            }
+            catch (IOException io)
+            {
+                throw new UncheckedIOException(io);
+            }
+        }, this.readers).thenApplyAsync(input -> deflate(input, offset == 0, last, level), this.workers);
+    }
+    
+    private void addChunks(ZipWriter.Entry entry, long length, FileChannel channel, ChunkTask task) throws IOException
+    {
+        long chunks = chunks(length);
+        
+        for (long i = 0; i < chunks; i++)
+        {
+            long offset = i * CHUNK_SIZE;
+            int size = (int) Math.min(CHUNK_SIZE, length - offset);
+            boolean last = i == chunks - 1;
+            
+            Future<Chunk> chunk = task.of(offset, size, last);
+            enqueue(new Pending(entry, i == 0, last, chunk, (last) ? channel : null));
+        }
+    }
+    
+    private static int chunks(long length)
+    {
+        return (int) Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+    
+    void addData(String name, byte[] data, long lastModified) throws IOException
+    {
+        ZipWriter.Entry entry = new ZipWriter.Entry(name, ZipEntry.DEFLATED, lastModified);
+        Future<Chunk> chunk = submit(() -> hashed(compress(data, 0, data.length, true, this.level), data, 0, data.length));
+        enqueue(new Pending(entry, true, true, chunk));
+    }
+    
+    /**
+     * Queues an entry whose compressed data is copied from another archive untouched.
+     */
+    void addCopy(String name, long lastModified, ZipReader source, ZipReader.Entry previous) throws IOException
+    {
+        ZipWriter.Entry entry = new ZipWriter.Entry(name, previous.getMethod(), lastModified);
+        boolean unknown = this.hashCopies && this.entryDigest != null && (this.knownHashes == null || this.knownHashes.get(name) == null);
+        enqueue(new Pending(entry, source, previous, (unknown) ? submit(() -> inflated(source, previous)) : null));
+    }
+    
+    /**
+     * Queues an entry with the same content as one added earlier, whose
+     * compressed data is read back from {@code archive} once it's written.
+     */
+    void addDuplicate(String name, long lastModified, ZipWriter.Entry original, FileChannel archive) throws IOException
+    {
+        ZipWriter.Entry entry = new ZipWriter.Entry(name, original.getMethod(), lastModified);
+        enqueue(new Pending(entry, original, archive));
+    }
+    
+    /**
+     * Writes every entry added so far, leaving the archive open for more.
+     */
+    void flush() throws IOException
+    {
+        drain(0);
+        this.writer.flush();
+    }
+    
+    /**
+     * Writes every remaining entry followed by the central directory.
+     */
+    void finish() throws IOException
+    {
+        drain(0);
+        this.writer.finish();
+    }
+    
+    @Override
+    public void close()
+    {
+        for (Pending next : this.pending)
+        {
+            if (next.chunk != null)
+            {
+                next.chunk.cancel(true);
+            }
+            closeInput(next);
+        }
+    }
+    
+    private void enqueue(Pending next) throws IOException
+    {
+        this.pending.add(next);
+        drain(this.window);
+    }
+    
+    private void drain(int limit) throws IOException
+    {
+        while (this.pending.size() > limit)
+        {
+            writeNext();
+        }
+    }
+    
+    private void writeNext() throws IOException
+    {
+        Pending next = this.pending.poll();
+        long started = System.nanoTime();
+        this.waited = 0;
+        
+        try
+        {
+            write(next);
+        }
+        finally
+        {
+            this.metrics.addWrite(System.nanoTime() - started - this.waited);
+        }
+    }
+    
+    private void write(Pending next) throws IOException
+    {
+        if (next.source != null)
+        {
+            ZipReader.Entry previous = next.previous;
+            long position = next.source.getDataOffset(previous);
+            
+            if (next.chunk != null)
+            {
+                next.entry.hash(await(next).hash);
+            }
+            
+            this.writer.copy(next.entry, previous.getCrc(), previous.getSize(), next.source.getChannel(), position, previous.getCompressedSize());
+            this.listener.accept(next.entry);
+            return;
+        }
+        
+        if (next.original != null)
+        {
+            ZipWriter.Entry original = next.original;
+            
+            this.writer.flush();
+            this.writer.copy(next.entry, original.getCrc(), original.getSize(), next.archive, original.getDataOffset(), original.getCompressedSize());
+            this.listener.accept(next.entry.hash(original.getHash()));
+            return;
+        }
+        
+        Chunk chunk;
+        
+        try
+        {
+            chunk = await(next);
+        }
+        catch (ZipperException e)
+        {
+            closeInput(next);
+            throw e;
+        }
+        
+        if (next.stored)
+        {
+            try
+            {
+                this.writer.store(next.entry.sizes(chunk.crc, chunk.size).hash(chunk.hash), next.input, chunk.size);
+            }
+            finally
+            {
+                closeInput(next);
+            }
+            this.listener.accept(next.entry);
+            return;
+        }
+        
+        if (next.first && next.last)
+        {
+            this.writer.write(next.entry.sizes(chunk.crc, chunk.size).hash(chunk.hash), chunk.data, 0, chunk.length);
+            chunk.recycle();
+            closeInput(next);
+            this.listener.accept(next.entry);
+            return;
+        }
+        
+        if (next.first)
+        {
+            this.writer.begin(next.entry);
+            this.entryCrc = 0;
+            this.entrySize = 0;
+            
+            if (this.entryDigest != null)
+            {
+                this.entryDigest.reset();
+            }
+        }
+        
+        if (chunk.input != null)
+        {
+            this.entryDigest.update(chunk.input.data, chunk.input.dictionary, chunk.input.length - chunk.input.dictionary);
+        }
+        
+        this.writer.write(chunk.data, 0, chunk.length);
+        chunk.recycle();
+        this.entryCrc = Crc32.combine(this.entryCrc, chunk.crc, chunk.size);
+        this.entrySize += chunk.size;
+        
+        if (next.last)
+        {
+            if (this.entryDigest != null)
+            {
+                next.entry.hash(this.entryDigest.digest());
+            }
+            this.writer.end(this.entryCrc, this.entrySize);
+            closeInput(next);
+            this.listener.accept(next.entry);
+        }
+    }
+    
+    private static void closeInput(Pending next)
+    {
+        if (next.input == null)
+        {
+            return;
+        }
+        
+        try
+        {
+            next.input.close();
+        }
+        catch (IOException io)
+        {
+            // Only ever read from.
+        }
+    }
+    
+    /**
+     * Waits for a chunk, counting the wait against waiting rather than writing.
+     */
+    private Chunk await(Pending next)
+    {
+        long started = System.nanoTime();
+        
+        try
+        {
+            return next.chunk.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ZipperException("Interrupted while compressing " + next.entry.getName(), e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = (e.getCause() instanceof UncheckedIOException) ? e.getCause().getCause() : e.getCause();
+            throw new ZipperException("Unable to compress " + next.entry.getName(), cause);
+        }
+        finally
+        {
+            this.waited = System.nanoTime() - started;
+            this.metrics.addWait(this.waited);
+        }
+    }
+    
+    private Chunk compress(FileChannel channel, long offset, int length, boolean last, int level, Reads reads) throws IOException
+    {
+        return deflate(fetch(channel, offset, length, reads), offset == 0, last, level);
+    }
+    
+    /**
+     * Reads a chunk along with the data before it that primes its dictionary.
+     *
+     * @param reads counts the chunk as read, or null
+     */
+    private Input fetch(FileChannel channel, long offset, int length, Reads reads) throws IOException
+    {
+        int dictionary = (int) Math.min(offset, DICTIONARY_SIZE);
+        byte[] data = INPUTS.take();
+        
+        try
+        {
+            int read = read(channel, offset - dictionary, data, dictionary + length);
+            if (reads != null) { reads.done(); }
+            
+            // A file that shrank since it was listed simply yields less data.
+            return new Input(data, Math.min(dictionary, read), read);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            INPUTS.give(data);
+            throw e;
+        }
+    }
+    
+    private Chunk deflate(Input input, boolean first, boolean last, int level)
+    {
+        Chunk chunk = null;
+        
+        try
+        {
+            int size = input.length - input.dictionary;
+            chunk = compress(input.data, input.dictionary, size, last, level);
+            
+            if (this.entryDigest == null || (first && last))
+            {
+                return hashed(chunk, input.data, input.dictionary, size);
+            }
+            
+            // Part of a larger file, hashed once it's the next to be written.
+            chunk.input = input;
+            return chunk;
+        }
+        finally
+        {
+            if (chunk == null || chunk.input == null)
+            {
+                INPUTS.give(input.data);
+            }
+        }
+    }
+    
+    /**
+     * Notes the hash of a whole entry's content on its chunk, when hashing.
+     */
+    private Chunk hashed(Chunk chunk, byte[] data, int offset, int length)
+    {
+        if (this.entryDigest != null)
+        {
+            MessageDigest digest = DIGESTS.take();
+            digest.update(data, offset, length);
+            chunk.hash = digest.digest();
+            DIGESTS.give(digest);
+        }
+        return chunk;
+    }
+    
+    /**
+     * Reads a file that fits a chunk buffer whole for a STORED entry.
+     */
+    private Chunk stored(Path file, int length, Reads reads) throws IOException
+    {
+        byte[] data = INPUTS.take();
+        int read;
+        
+        try (FileChannel channel = open(file))
+        {
+            read = read(channel, 0, data, length);
+            if (reads != null) { reads.done(); }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            INPUTS.give(data);
+            throw e;
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, read);
+        return hashed(new Chunk(data, read, crc.getValue(), read, INPUTS), data, 0, read);
+    }
+    
+    /**
+     * Checksums a file for a STORED entry straight from the page cache,
+     * a mapped region at a time, without copying it onto the heap.
+     */
+    private Chunk checksum(FileChannel channel, long length) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        MessageDigest digest = (this.entryDigest == null) ? null : DIGESTS.take();
+        long size = Math.min(length, channel.size());
+        
+        for (long position = 0; position < size; position += MAP_REGION)
+        {
+            long region = Math.min(MAP_REGION, size - position);
+            this.metrics.addThrottle(this.limits.read(region));
+            
+            long started = System.nanoTime();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, region);
+            
+            if (digest != null)
+            {
+                digest.update(mapped.duplicate());
+            }
+            crc.update(mapped);
+            readTook(System.nanoTime() - started, region);
+        }
+        
+        Chunk chunk = new Chunk(null, 0, crc.getValue(), size);
+        
+        if (digest != null)
+        {
+            chunk.hash = digest.digest();
+            DIGESTS.give(digest);
+        }
+        return chunk;
+    }
+    
+    /**
+     * Hashes a copied entry's content, inflating it from the archive it's copied from.
+     */
+    private Chunk inflated(ZipReader source, ZipReader.Entry previous) throws IOException
+    {
+        MessageDigest digest = DIGESTS.take();
+        byte[] buffer = INPUTS.take();
+        long started = System.nanoTime();
+        
+        try (InputStream in = source.open(previous))
+        {
+            int read;
+            
+            while ((read = in.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, read);
+            }
+            
+            Chunk chunk = new Chunk(null, 0, previous.getCrc(), previous.getSize());
+            chunk.hash = digest.digest();
+            return chunk;
+        }
+        finally
+        {
+            this.metrics.addRead(System.nanoTime() - started);
+            INPUTS.give(buffer);
+            digest.reset();
+            DIGESTS.give(digest);
+        }
+    }
+    
+    /**
+     * Deflates {@code size} bytes of input following {@code dictionary} bytes of preset dictionary.
+     */
+    private Chunk compress(byte[] input, int dictionary, int size, boolean last, int level)
+    {
+        long started = System.nanoTime();
+        CRC32 crc = new CRC32();
+        crc.update(input, dictionary, size);
+        
+        Pool<Deflater> deflaters = deflaters(level);
+        Deflater deflater = deflaters.take();
+        
+        try
+        {
+            if (dictionary > 0)
+            {
+                deflater.setDictionary(input, 0, dictionary);
+            }
+            deflater.setInput(input, dictionary, size);
+            
+            byte[] pooled = (size <= CHUNK_SIZE) ? OUTPUTS.take() : null;
+            byte[] output = (pooled != null) ? pooled : new byte[outputBound(size)];
+            int count = 0;
+            
+            if (last)
+            {
+                deflater.finish();
+                
+                while (!deflater.finished())
+                {
+                    if (count == output.length) { output = Arrays.copyOf(output, output.length * 2); }
+                    count += deflater.deflate(output, count, output.length - count);
+                }
+            }
+            else
+            {
+                do
+                {
+                    if (count == output.length) { output = Arrays.copyOf(output, output.length * 2); }
+                    count += deflater.deflate(output, count, output.length - count, Deflater.SYNC_FLUSH);
+                }
+                while (count == output.length);
+            }
+            
+            if (pooled != null && output != pooled)
+            {
+                // Outgrown, which only incompressible data that won't finish in one go can do.
+                OUTPUTS.give(pooled);
+                pooled = null;
+            }
+            return new Chunk(output, count, crc.getValue(), size, (pooled != null) ? OUTPUTS : null);
+        }
+        finally
+        {
+            deflater.reset();
+            deflaters.give(deflater);
+            this.metrics.addCompress(System.nanoTime() - started, size);
+        }
+    }
+    
+    /**
+     * The shared pool of raw deflaters at {@code level}, which take back only
+     * deflaters that have been reset.
+     */
+    static Pool<Deflater> deflaters(int level)
+    {
+        return DEFLATERS.get(level - Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    private static int outputBound(int size)
+    {
+        return size + (size >> 6) + 64;
+    }
+    
+    private int read(FileChannel channel, long position, byte[] into, int length) throws IOException
+    {
+        this.metrics.addThrottle(this.limits.read(length));
+        
+        long started = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.wrap(into, 0, length);
+        
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                break;
+            }
+        }
+        readTook(System.nanoTime() - started, buffer.position());
+        return buffer.position();
+    }
+    
+    private void readTook(long nanos, long bytes)
+    {
+        this.metrics.addRead(nanos);
+        this.limits.readTook(nanos, bytes);
+    }
+    
+    // ChunkTask
+    
+    @FunctionalInterface
+    private interface ChunkTask
+    {
+        Future<Chunk> of(long offset, int size, boolean last);
+    }
+    
+    // Reads
+    
+    /**
+     * Counts down a file's chunks as they're read, in whatever order, and
+     * takes the file's snapshot once the last of them is in.
+     */
+    private static final class Reads
+    {
+        private final Path file;
+        private final AtomicInteger remaining;
+        
+        // Set on a worker before the entry's last chunk is handed over.
+        private volatile ConsistencyCheck.Snapshot snapshot = null;
+        
+        private Reads(Path file, int chunks)
+        {
+            this.file = file;
+            this.remaining = new AtomicInteger(chunks);
+        }
+        
+        private void done()
+        {
+            if (this.remaining.decrementAndGet() == 0)
+            {
+                this.snapshot = ConsistencyCheck.Snapshot.of(this.file);
+            }
+        }
+    }
+    
+    // Input
+    
+    private static final class Input
+    {
+        private final byte[] data;
+        private final int dictionary;
+        private final int length;
+        
+        private Input(byte[] data, int dictionary, int length)
+        {
+            this.data = data;
+            this.dictionary = dictionary;
+            this.length = length;
+        }
+    }
+    
+    // Chunk
+    
+    private static final class Chunk
+    {
+        private final byte[] data;
+        private final int length;
+        private final long crc;
+        private final long size;
+        private final Pool<byte[]> pool;
+        
+        // Set on the worker before the chunk is handed over.
+        private byte[] hash = null;
+        private Input input = null;
+        
+        private Chunk(byte[] data, int length, long crc, long size)
+        {
+            this(data, length, crc, size, null);
+        }
+        
+        /**
+         * @param pool where {@code data} goes back to once written, or null if it isn't pooled
+         */
+        private Chunk(byte[] data, int length, long crc, long size, Pool<byte[]> pool)
+        {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.size = size;
+            this.pool = pool;
+        }
+        
+        private void recycle()
+        {
+            if (this.pool != null)
+            {
+                this.pool.give(this.data);
+            }
+            if (this.input != null)
+            {
+                INPUTS.give(this.input.data);
+            }
+        }
+    }
+    
+    // Pending
+    
+    private static final class Pending
+    {
+        private final ZipWriter.Entry entry;
+        private final boolean first;
+        private final boolean last;
+        private final Future<Chunk> chunk;
+        private final FileChannel input;
+        private final boolean stored;
+        private final ZipReader source;
+        private final ZipReader.Entry previous;
+        private final ZipWriter.Entry original;
+        private final FileChannel archive;
+        
+        private Pending(ZipWriter.Entry entry, boolean first, boolean last, Future<Chunk> chunk)
+        {
+            this(entry, first, last, chunk, null);
+        }
+        
+        private Pending(ZipWriter.Entry entry, boolean first, boolean last, Future<Chunk> chunk, FileChannel input)
+        {
+            this(entry, first, last, chunk, input, false, null, null, null, null);
+        }
+        
+        /**
+         * A large STORED entry, sent straight from {@code input} once its checksum is known.
+         */
+        private Pending(ZipWriter.Entry entry, Future<Chunk> checksum, FileChannel input)
+        {
+            this(entry, true, true, checksum, input, true, null, null, null, null);
+        }
+        
+        /**
+         * @param hashed the copied content's hash, or null if it isn't needed
+         */
+        private Pending(ZipWriter.Entry entry, ZipReader source, ZipReader.Entry previous, Future<Chunk> hashed)
+        {
+            this(entry, true, true, hashed, null, false, source, previous, null, null);
+        }
+        
+        private Pending(ZipWriter.Entry entry, ZipWriter.Entry original, FileChannel archive)
+        {
+            this(entry, true, true, null, null, false, null, null, original, archive);
+        }
+        
+        private Pending(ZipWriter.Entry entry, boolean first, boolean last, Future<Chunk> chunk, FileChannel input, boolean stored, ZipReader source, ZipReader.Entry previous, ZipWriter.Entry original, FileChannel archive)
+        {
+            this.entry = entry;
+            this.first = first;
+            this.last = last;
+            this.chunk = chunk;
+            this.input = input;
+            this.stored = stored;
+            this.source = source;
+            this.previous = previous;
+            this.original = original;
+            this.archive = archive;
+        }
+    }
+    
+    // WorkerFactory
+    
+    private static final class WorkerFactory implements ThreadFactory
+    {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "zip-it-deflate-" + COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
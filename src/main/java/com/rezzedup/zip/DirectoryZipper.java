@@ -1,39 +1,113 @@
 package com.rezzedup.zip;
 
-import org.zeroturnaround.zip.ZipUtil;
-
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.stream.Stream;
-import java.util.zip.ZipOutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class DirectoryZipper
 {
+    /**
+     * Name of the entry listing what was deleted since the previous incremental run.
+     */
+    public static final String DELETED_ENTRY = ".zip-it.deleted";
+    
+    /**
+     * Stream target meaning this process's standard output.
+     */
+    public static final File STANDARD_OUTPUT = new File("-");
+    
+    /**
+     * Extension added to a solid archive's name for its {@link SolidIndex}.
+     */
+    public static final String BLOCK_INDEX_EXTENSION = ".blocks";
+    
+    /**
+     * Extension added to an archive's name for its {@link HashManifest}.
+     */
+    public static final String HASH_MANIFEST_EXTENSION = ".sha256";
+    
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+    
     private final FileCounter counter = new FileCounter();
     
     private boolean skip = false;
     private boolean isRecursive = true;
+    private int threads = 1;
+    private int walkThreads = 1;
+    private int prefetch = 0;
+    private boolean physicalOrder = false;
+    private long solidBlockSize = 0;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private CompressionPolicy policy = CompressionPolicy.uniform();
+    private File index = null;
+    private boolean compareChecksums = false;
+    private boolean deduplicate = false;
+    private boolean hashManifest = false;
+    private Pattern previousArchives = null;
+    private int checkpointInterval = 0;
+    private ConsistencyCheck consistency = null;
+    private IoLimits limits = IoLimits.unlimited();
     
     private final File source;
+    private final File outputDirectory;
+    private final String outputName;
+    private final ArchiveFormat format;
+    private final long volumeSize;
+    private final File stream;
     private final File tempOutput;
     private final File completeOutput;
     private final Filter<String> filter;
     private final String entryPath;
     
+    private Manifest manifest = null;
+    private JobMetrics metrics = null;
+    private HashManifest hashes = null;
+    private HashManifest previousHashes = null;
+    private long lastProgress = 0;
+    
     public static Builder of(File sourceDirectory)
     {
         return new Builder(sourceDirectory);
     }
     
-    private DirectoryZipper(File sourceDirectory, File outputDirectory, String outputName, Filter<String> filter)
+    /**
+     * @param volumeSize most bytes per archive before starting another, or 0 to write a single archive
+     * @param stream     a pipe or {@link #STANDARD_OUTPUT} to stream the archive to, or null to write it to the output directory
+     */
+    private DirectoryZipper(File sourceDirectory, File outputDirectory, String outputName, ArchiveFormat format, long volumeSize, File stream, Filter<String> filter)
     {
         this.source = sourceDirectory;
-        this.tempOutput = new File(outputDirectory, outputName + ".temp");
-        this.completeOutput = new File(outputDirectory, outputName + ".zip");
+        this.outputDirectory = outputDirectory;
+        this.outputName = outputName;
+        this.format = format;
+        this.volumeSize = volumeSize;
+        this.stream = stream;
+        this.tempOutput = volumeFile(1, ".temp");
+        this.completeOutput = (stream != null) ? stream : volumeFile(1, format.getExtension());
         this.filter = filter;
     
         String path = this.source.getPath().replaceAll("^(\\.|\\/)*", "");
@@ -49,14 +123,20 @@ public class DirectoryZipper
             skip("No such directory '" + sourceDirectory + "'");
             return;
         }
+        
+        if (stream != null)
+        {
+            return;
+        }
     
         if (completeOutput.isFile())
         {
-            skip("Output zip file already exists");
+            skip("Output archive already exists");
             return;
         }
         
-        if (tempOutput.isFile())
+        // An interrupted run that left a checkpoint may be resumed instead.
+        if (tempOutput.isFile() && !volumeFile(1, ".checkpoint").isFile())
         {
             Print.notice("Temp output file exists. Deleting: '" + tempOutput + "'");
             tempOutput.delete();
@@ -69,23 +149,152 @@ public class DirectoryZipper
         }
     }
     
+    /**
+     * The file of a volume, numbered from 1. Unsplit archives keep the plain name.
+     */
+    private File volumeFile(int volume, String extension)
+    {
+        String suffix = (this.volumeSize > 0) ? String.format(".part%03d", volume) : "";
+        return new File(this.outputDirectory, this.outputName + suffix + extension);
+    }
+    
     private void skip(String reason)
     {
         this.skip = true;
         Print.notice("Skipping " + source.getName(), reason);
     }
     
-    private Stream<Path> getPaths()
+    /**
+     * Walks the source once, collecting every accepted entry with its size
+     * and modification time. The result is cached for {@link #run()}.
+     */
+    public Manifest scan()
     {
+        if (this.manifest != null)
+        {
+            return this.manifest;
+        }
+        
+        Manifest manifest = new Manifest();
+        
+        if (this.skip)
+        {
+            return this.manifest = manifest;
+        }
+        
+        Path root = this.source.toPath();
+        long started = System.nanoTime();
+        
+        FileVisitor<Path> visitor = new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+            {
+                if (dir.equals(root))
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                if (!acceptsAnyWithin(root, dir))
+                {
+                    if (Print.isVerbose())
+                    {
+                        Print.notice("  Skipping", entryPath + relativize(root, dir) + "/ (entire directory)");
+                    }
+                    counter.skippedFiles += 1;
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                
+                include(manifest, root, dir, attributes);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            {
+                // Directories past the depth limit arrive here instead of preVisitDirectory.
+                if (isRecursive || !attributes.isDirectory())
+                {
+                    include(manifest, root, file, attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException io)
+            {
+                if (io instanceof FileSystemLoopException)
+                {
+                    Print.notice("  Skipping link back into its own directory", entryPath + relativize(root, file));
+                    counter.skippedFiles += 1;
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                Print.notice("  Unable to read", file + " (" + io.getMessage() + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        
+        int depth = (this.isRecursive) ? Integer.MAX_VALUE : 1;
+        
         try
         {
-            return (this.isRecursive) ? Files.walk(source.toPath()) : Files.list(source.toPath());
+            if (this.walkThreads > 1)
+            {
+                new ParallelWalker(this.walkThreads, depth, dir -> dir.equals(root) || acceptsAnyWithin(root, dir)).walk(root, visitor);
+            }
+            else
+            {
+                Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), depth, visitor);
+            }
         }
         catch (IOException io)
         {
             io.printStackTrace();
         }
-        return new ArrayList<Path>().stream();
+        
+        this.metrics.addWalk(System.nanoTime() - started);
+        return this.manifest = manifest;
+    }
+    
+    /**
+     * Whether anything under the directory could pass the filter. Safe to call from walker threads.
+     */
+    private boolean acceptsAnyWithin(Path root, Path dir)
+    {
+        String name = this.entryPath + relativize(root, dir) + "/";
+        long started = System.nanoTime();
+        boolean accepted = this.filter.acceptsAnyWithin(name);
+        this.metrics.addFilter(System.nanoTime() - started);
+        return accepted;
+    }
+    
+    /**
+     * Links are followed, so the attributes are those of their target. Only
+     * a link whose target is gone still shows up as a link, and is left out.
+     */
+    private void include(Manifest manifest, Path root, Path path, BasicFileAttributes attributes)
+    {
+        if (attributes.isSymbolicLink())
+        {
+            Print.notice("  Skipping broken link", this.entryPath + relativize(root, path));
+            this.counter.skippedFiles += 1;
+            return;
+        }
+        
+        boolean isDirectory = attributes.isDirectory();
+        String relative = relativize(root, path);
+        String name = accept((isDirectory) ? relative + "/" : relative);
+        
+        if (name != null)
+        {
+            manifest.add(new Manifest.Entry(path, name, isDirectory, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        }
+    }
+    
+    private static String relativize(Path root, Path path)
+    {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
     }
     
     public void run()
@@ -95,80 +304,650 @@ public class DirectoryZipper
             return;
         }
         
+        long started = System.nanoTime();
+        boolean success = false;
+        
+        try
+        {
+            success = zip();
+        }
+        finally
+        {
+            this.metrics.finished(System.nanoTime() - started, success);
+        }
+    }
+    
+    /**
+     * @return whether the archive was completed
+     */
+    private boolean zip()
+    {
         Print.line(Ansi.Cyan.and(Ansi.HighIntensity).colorize("Zipping: '" + this.source + "' --> '" + this.completeOutput + "'"));
         
         Print.status("  Calculating total files...");
-        this.counter.totalFiles = getPaths().count();
-        Print.option("  Found", this.counter.totalFiles + " files");
-    
-        if (this.isRecursive)
+        Manifest manifest = scan();
+        Print.option("  Found", manifest.getTotalFiles() + " files, " + manifest.getTotalBytes() + " bytes");
+        
+        List<Manifest.Entry> entries = manifest.getEntries();
+        List<String> deleted = Collections.emptyList();
+        FileIndex updated = new FileIndex();
+        
+        if (this.index != null)
         {
-            ZipUtil.pack(this.source, this.tempOutput, this::accept);
+            FileIndex previous = loadIndex();
+            
+            if (!previous.isEmpty())
+            {
+                Print.status("  Comparing against " + this.index.getName() + "...");
+                entries = changedEntries(manifest, previous, updated);
+                deleted = deletedEntries(manifest, previous);
+                Print.option("  Changed", entries.size() + " entries, " + deleted.size() + " deleted");
+            }
         }
-        else
+        
+        Checkpoint checkpoint = openCheckpoint();
+        Set<String> resumed = new HashSet<>();
+        
+        if (checkpoint != null && checkpoint.getOffset() > 0)
         {
-            try
+            for (Checkpoint.Record record : checkpoint.getRecords())
             {
-                this.tempOutput.createNewFile();
-                // create an empty zip...
-                ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(this.tempOutput));
-                stream.close();
+                resumed.add(record.getName());
+                
+                if (!record.getName().equals(DELETED_ENTRY))
+                {
+                    updated.put(record.getName(), new FileIndex.Record(record.getSize(), record.getLastModified(), record.getCrc()));
+                }
             }
-            catch (IOException io)
+            
+            List<Manifest.Entry> remaining = new ArrayList<>();
+            
+            for (Manifest.Entry entry : entries)
             {
-                io.printStackTrace();
-                return;
+                if (!resumed.contains(entry.getName()))
+                {
+                    remaining.add(entry);
+                }
             }
             
-            getPaths().forEach(path -> 
+            Print.status("  Resuming after " + resumed.size() + " entries (" + checkpoint.getOffset() + " bytes) from the last checkpoint");
+            entries = remaining;
+            
+            if (this.hashManifest)
+            {
+                Print.notice("  Entries written before the checkpoint won't be in the hash manifest", resumed.size() + " entries");
+            }
+        }
+        
+        if (this.solidBlockSize > 0)
+        {
+            entries = sortBySimilarity(entries);
+        }
+        else if (this.physicalOrder)
+        {
+            entries = sortPhysically(entries);
+        }
+        
+        for (Manifest.Entry entry : entries)
+        {
+            if (!entry.isDirectory())
             {
-                if (Files.isDirectory(path)) { return; }
+                this.counter.totalFiles += 1;
+                this.counter.totalBytes += entry.getSize();
+            }
+        }
+        
+        long started = System.nanoTime();
+        this.lastProgress = started;
+        long bytesWritten;
+        
+        try (ArchiveWriter archive = openVolumes(entries, checkpoint))
+        {
+            archive.onWritten((name, size, lastModified, crc, hash) ->
+            {
+                if (!name.equals(DELETED_ENTRY))
+                {
+                    updated.put(name, new FileIndex.Record(size, lastModified, crc));
+                }
                 
-                File file = path.toFile();
-                String name = file.getName();
+                if (this.hashes != null && !name.endsWith("/"))
+                {
+                    addHash(name, hash);
+                }
+            });
+            
+            if (this.hashManifest)
+            {
+                archive.hashContents();
+            }
+            
+            for (Manifest.Entry entry : entries)
+            {
+                if (Print.isVerbose())
+                {
+                    Print.line("  Adding: " + entry.getName());
+                }
                 
-                if (accept(name) == null) { return; }
+                if (entry.isDirectory())
+                {
+                    archive.addDirectory(entry);
+                    continue;
+                }
                 
-                ZipUtil.addEntry(this.tempOutput, name, file);
-            });
+                reportProgress();
+                
+                switch (archive.addFile(entry))
+                {
+                    case STORED:
+                        this.counter.storedFiles += 1;
+                        this.counter.storedBytes += entry.getSize();
+                        break;
+                    case REUSED:
+                        this.counter.reusedFiles += 1;
+                        break;
+                    case DUPLICATE:
+                        this.counter.duplicateFiles += 1;
+                        break;
+                    case MISSING:
+                        this.counter.totalFiles -= 1;
+                        this.counter.totalBytes -= entry.getSize();
+                        continue;
+                    default:
+                        break;
+                }
+                
+                this.counter.completedFiles += 1;
+                this.counter.completedBytes += entry.getSize();
+            }
+            
+            if (!deleted.isEmpty() && !resumed.contains(DELETED_ENTRY))
+            {
+                if (Print.isVerbose())
+                {
+                    Print.line("  Adding: " + DELETED_ENTRY + " (" + deleted.size() + " deleted)");
+                }
+                archive.addData(DELETED_ENTRY, String.join("\n", deleted).getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+            }
+            
+            archive.finish();
+            bytesWritten = archive.getBytesWritten();
+            
+            double seconds = (System.nanoTime() - started) / 1e9;
+            Print.clarify(String.format("  Zipped %d files, %d bytes into %d bytes in %.1f s", this.counter.completedFiles, this.counter.completedBytes, bytesWritten, seconds));
+            
+            if (this.policy.isAdaptive())
+            {
+                // What the stored bytes would have cost at this run's deflate speed, less the probing.
+                double saved = (this.counter.storedBytes * this.metrics.getCompressNanosPerByte() - this.policy.getProbeNanos()) / 1e9;
+                Print.clarify(String.format("  Stored %d files (%d bytes) without compressing, saving about %.1f s of CPU (%d probed)",
+                    this.counter.storedFiles, this.counter.storedBytes, Math.max(0, saved), this.policy.getProbes()));
+            }
+            
+            if (this.counter.duplicateFiles > 0)
+            {
+                Print.clarify("  Copied " + this.counter.duplicateFiles + " duplicate files instead of compressing them again");
+            }
+            
+            if (this.counter.reusedFiles > 0)
+            {
+                Print.clarify("  Reused " + this.counter.reusedFiles + " of " + this.counter.completedFiles + " files without recompressing");
+            }
+            
+            if (this.counter.unhashedFiles > 0)
+            {
+                Print.notice("  Left " + this.counter.unhashedFiles + " reused files out of the hash manifest", "the archive they came from has none");
+            }
+            
+            if (this.consistency != null)
+            {
+                this.consistency.report();
+            }
+        }
+        catch (IOException io)
+        {
+            io.printStackTrace();
+            return false;
         }
         
-        Print.clarify("  Renamed " + tempOutput.getName() + " to " + completeOutput.getName());
+        this.metrics.totals(this.counter.completedFiles, this.counter.skippedFiles, this.counter.storedFiles, this.counter.reusedFiles,
+            this.counter.duplicateFiles, (this.consistency == null) ? 0 : this.consistency.getInconsistentCount(), this.counter.completedBytes, bytesWritten);
         
-        tempOutput.renameTo(completeOutput);
+        if (this.stream == null && this.volumeSize == 0)
+        {
+            complete(1);
+        }
+        
+        if (this.index != null)
+        {
+            try
+            {
+                updated.save(this.index);
+                Print.clarify("  Updated " + this.index.getName());
+            }
+            catch (IOException io)
+            {
+                io.printStackTrace();
+            }
+        }
         
         Print.status("  Done.");
+        return true;
     }
     
-    private String accept(String name)
+    /**
+     * Files reused from the previous archive weren't read, so their hash is
+     * taken from its manifest, if they weren't hashed as they were copied.
+     */
+    private void addHash(String name, byte[] hash)
     {
-        String entry = this.entryPath + name;
+        byte[] content = (hash != null || this.previousHashes == null) ? hash : this.previousHashes.get(name);
+        
+        if (content == null)
+        {
+            this.counter.unhashedFiles += 1;
+            return;
+        }
+        this.hashes.add(name, content);
+    }
+    
+    private List<Manifest.Entry> sortPhysically(List<Manifest.Entry> entries)
+    {
+        Print.status("  Sorting files by inode...");
+        long started = System.nanoTime();
+        List<Manifest.Entry> sorted = PhysicalOrder.sort(entries);
+        this.metrics.addWalk(System.nanoTime() - started);
+        
+        if (sorted == null)
+        {
+            Print.notice("  Unable to sort by inode", "the file system has no inode numbers, keeping directory order");
+            return entries;
+        }
+        return sorted;
+    }
+    
+    /**
+     * Directories first, then files grouped by extension and name, so that
+     * files likely to look alike end up next to each other in a solid block.
+     */
+    private static List<Manifest.Entry> sortBySimilarity(List<Manifest.Entry> entries)
+    {
+        List<Manifest.Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing((Manifest.Entry entry) -> !entry.isDirectory())
+            .thenComparing(entry -> (entry.isDirectory()) ? "" : extension(entry.getName()))
+            .thenComparing(entry -> (entry.isDirectory()) ? "" : entry.getName().substring(entry.getName().lastIndexOf('/') + 1)));
+        return sorted;
+    }
+    
+    private static String extension(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        return (dot <= name.lastIndexOf('/')) ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+    
+    private ArchiveWriter openVolumes(List<Manifest.Entry> entries, Checkpoint checkpoint) throws IOException
+    {
+        DuplicateFinder duplicates = (this.deduplicate && this.format == ArchiveFormat.ZIP) ? new DuplicateFinder(entries, DuplicateFinder.DEFAULT_CAPACITY, this.limits) : null;
+        
+        if (this.stream != null)
+        {
+            return openStream();
+        }
+        
+        if (this.volumeSize == 0)
+        {
+            return openArchive(1, duplicates, checkpoint);
+        }
+        
+        return new SplitArchiveWriter(this.volumeSize, new SplitArchiveWriter.Volumes()
+        {
+            @Override
+            public ArchiveWriter open(int volume) throws IOException
+            {
+                Print.status("  Starting volume " + volume + ": " + volumeFile(volume, format.getExtension()).getName());
+                
+                // Duplicates are only copied from within the same volume.
+                if (duplicates != null) { duplicates.forget(); }
+                return openArchive(volume, duplicates, null);
+            }
+            
+            @Override
+            public void finished(int volume)
+            {
+                complete(volume);
+            }
+        });
+    }
+    
+    /**
+     * Writes the archive front to back without ever seeking or reading it back,
+     * so it can go down a pipe. Nothing lands on the local disk.
+     */
+    private ArchiveWriter openStream() throws IOException
+    {
+        OutputStream out = (this.stream.equals(STANDARD_OUTPUT)) ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(this.stream);
+        
+        if (this.format != ArchiveFormat.ZIP)
+        {
+            return new TarArchiveWriter(out, this.format, this.threads, this.level, this.consistency, this.metrics, this.limits);
+        }
+        return new ZipArchiveWriter(out, this.threads, this.level, this.prefetch, this.policy, this.consistency, this.metrics, this.limits);
+    }
+    
+    private ArchiveWriter openArchive(int volume, DuplicateFinder duplicates, Checkpoint checkpoint) throws IOException
+    {
+        File file = volumeFile(volume, ".temp");
+        this.hashes = (this.hashManifest) ? new HashManifest() : null;
+        
+        if (this.format != ArchiveFormat.ZIP)
+        {
+            File index = (this.solidBlockSize > 0) ? volumeFile(volume, BLOCK_INDEX_EXTENSION + ".temp") : null;
+            return new TarArchiveWriter(file, this.format, this.threads, this.level, this.solidBlockSize, index, this.consistency, this.metrics, this.limits);
+        }
+        ZipReader previous = openPreviousArchive();
+        ZipArchiveWriter archive = new ZipArchiveWriter(file, this.threads, this.level, this.prefetch, this.policy, previous, duplicates, checkpoint, this.consistency, this.metrics, this.limits);
+        
+        if (this.hashManifest && previous != null)
+        {
+            archive.hashCopies(this.previousHashes);
+        }
+        return archive;
+    }
+    
+    /**
+     * Gives a finished volume its final name, after which it's safe to move or upload.
+     */
+    private void complete(int volume)
+    {
+        File temp = volumeFile(volume, ".temp");
+        File complete = volumeFile(volume, this.format.getExtension());
+        
+        Print.clarify("  Renamed " + temp.getName() + " to " + complete.getName());
+        temp.renameTo(complete);
+        
+        File index = volumeFile(volume, BLOCK_INDEX_EXTENSION + ".temp");
+        
+        if (this.solidBlockSize > 0 && index.isFile())
+        {
+            index.renameTo(volumeFile(volume, this.format.getExtension() + BLOCK_INDEX_EXTENSION));
+        }
+        
+        if (this.hashes != null)
+        {
+            File manifest = volumeFile(volume, this.format.getExtension() + HASH_MANIFEST_EXTENSION);
+            
+            try
+            {
+                this.hashes.save(manifest);
+                Print.clarify("  Wrote " + this.hashes.size() + " hashes to " + manifest.getName());
+            }
+            catch (IOException io)
+            {
+                io.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Picks up the checkpoint journal left by an interrupted run, or starts a
+     * new one. Null when checkpoints are off or the journal can't be written.
+     */
+    private Checkpoint openCheckpoint()
+    {
+        File journal = volumeFile(1, ".checkpoint");
+        
+        if (this.checkpointInterval <= 0)
+        {
+            if (journal.isFile())
+            {
+                Print.notice("  Checkpoints are off, starting over", journal.getName());
+                journal.delete();
+            }
+            return null;
+        }
+        
+        try
+        {
+            if (journal.isFile() && this.tempOutput.isFile())
+            {
+                Checkpoint resumed = Checkpoint.resume(journal, this.tempOutput.length(), this.checkpointInterval, TimeUnit.SECONDS);
+                
+                if (resumed != null)
+                {
+                    return resumed;
+                }
+                Print.notice("  Nothing to resume, starting over", journal.getName());
+            }
+            return Checkpoint.start(journal, this.checkpointInterval, TimeUnit.SECONDS);
+        }
+        catch (IOException io)
+        {
+            Print.notice("  Unable to checkpoint", io.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Opens the most recent earlier archive of this source, if reuse is enabled and there is one.
+     */
+    private ZipReader openPreviousArchive()
+    {
+        if (this.previousArchives == null)
+        {
+            return null;
+        }
+        
+        File[] candidates = this.outputDirectory.listFiles((dir, name) -> this.previousArchives.matcher(name).matches());
+        File latest = null;
+        
+        for (File candidate : (candidates == null) ? new File[0] : candidates)
+        {
+            if (!candidate.equals(this.completeOutput) && (latest == null || candidate.lastModified() > latest.lastModified()))
+            {
+                latest = candidate;
+            }
+        }
+        
+        if (latest == null)
+        {
+            return null;
+        }
+        
+        try
+        {
+            ZipReader reader = new ZipReader(latest);
+            Print.status("  Reusing unchanged entries from " + latest.getName() + " (" + reader.size() + " entries)");
+            this.previousHashes = (this.hashManifest) ? loadPreviousHashes(latest) : null;
+            return reader;
+        }
+        catch (IOException io)
+        {
+            Print.notice("  Unable to reuse " + latest.getName(), io.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * The hash manifest of an earlier archive, or null if it has none.
+     */
+    private static HashManifest loadPreviousHashes(File archive)
+    {
+        File manifest = new File(archive.getPath() + HASH_MANIFEST_EXTENSION);
+        
+        if (!manifest.isFile())
+        {
+            return null;
+        }
+        
+        try
+        {
+            return HashManifest.load(manifest);
+        }
+        catch (IOException io)
+        {
+            Print.notice("  Unable to read " + manifest.getName(), io.getMessage());
+            return null;
+        }
+    }
+    
+    private FileIndex loadIndex()
+    {
+        try
+        {
+            return FileIndex.load(this.index);
+        }
+        catch (IOException io)
+        {
+            Print.notice("  Unreadable index, zipping everything", io.getMessage());
+            return new FileIndex();
+        }
+    }
+    
+    /**
+     * Entries that are new or differ from the previous index. Unchanged entries
+     * are carried over into the updated index as they are.
+     */
+    private List<Manifest.Entry> changedEntries(Manifest manifest, FileIndex previous, FileIndex updated)
+    {
+        List<Manifest.Entry> changed = new ArrayList<>();
         
-        if (this.filter.accepts(entry))
+        for (Manifest.Entry entry : manifest.getEntries())
         {
-            Print.line("  Adding: " + entry);
+            FileIndex.Record record = previous.get(entry.getName());
             
-            if (this.counter.completedFiles % 10 == 0)
+            if (record == null)
+            {
+                changed.add(entry);
+            }
+            else if (entry.isDirectory() || (record.getSize() == entry.getSize() && record.getLastModified() == entry.getLastModified()))
             {
-                Print.clarify("  --> " + getPercentComplete() + "% Complete");
+                updated.put(entry.getName(), record);
             }
+            else if (this.compareChecksums && record.getSize() == entry.getSize() && record.getCrc() == checksum(entry.getPath(), this.limits))
+            {
+                // Touched but identical.
+                updated.put(entry.getName(), record.withLastModified(entry.getLastModified()));
+            }
+            else
+            {
+                changed.add(entry);
+            }
+        }
+        return changed;
+    }
+    
+    private static List<String> deletedEntries(Manifest manifest, FileIndex previous)
+    {
+        Set<String> present = new HashSet<>();
+        manifest.getEntries().forEach(entry -> present.add(entry.getName()));
+        
+        List<String> deleted = new ArrayList<>();
+        
+        for (String name : previous.getNames())
+        {
+            if (!present.contains(name))
+            {
+                deleted.add(name);
+            }
+        }
+        
+        Collections.sort(deleted);
+        return deleted;
+    }
+    
+    private static long checksum(Path path, IoLimits limits)
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        limits.open();
+        
+        try (InputStream in = Files.newInputStream(path))
+        {
+            int read;
             
-            this.counter.completedFiles += 1;
+            while ((read = in.read(buffer)) > 0)
+            {
+                limits.read(read);
+                crc.update(buffer, 0, read);
+            }
+        }
+        catch (IOException io)
+        {
+            return -1;
+        }
+        return crc.getValue();
+    }
+    
+    private String accept(String name)
+    {
+        String entry = this.entryPath + name;
+        long started = System.nanoTime();
+        boolean accepted = this.filter.accepts(entry);
+        this.metrics.addFilter(System.nanoTime() - started);
+        
+        if (accepted)
+        {
             return entry;
         }
         else
         {
-            Print.notice("  Skipping", entry);
+            if (Print.isVerbose())
+            {
+                Print.notice("  Skipping", entry);
+            }
             this.counter.skippedFiles += 1;
             return null;
         }
     }
     
+    /**
+     * Total size in bytes of the files this zipper will add, or 0 when it is skipped.
+     */
+    public long getSourceSize()
+    {
+        return scan().getTotalBytes();
+    }
+    
+    /**
+     * Prints progress every 10 files, or at most every few seconds when per-file lines are off.
+     */
+    private void reportProgress()
+    {
+        if (Print.isVerbose())
+        {
+            if (this.counter.completedFiles % 10 != 0) { return; }
+        }
+        else
+        {
+            long now = System.nanoTime();
+            
+            if (now - this.lastProgress < PROGRESS_INTERVAL) { return; }
+            this.lastProgress = now;
+        }
+        
+        Print.clarify("  --> " + getPercentComplete() + "% Complete (" + getPercentBytesComplete() + "% of bytes)");
+    }
+    
     public long getPercentComplete()
     {
-        double visited = this.counter.completedFiles + this.counter.skippedFiles;
-        double percent = visited / (double) this.counter.totalFiles;
-        return (long) (percent * 100);
+        return percent(this.counter.completedFiles, this.counter.totalFiles);
+    }
+    
+    public long getPercentBytesComplete()
+    {
+        return percent(this.counter.completedBytes, this.counter.totalBytes);
+    }
+    
+    private static long percent(long completed, long total)
+    {
+        return (total <= 0) ? 100 : (long) ((completed / (double) total) * 100);
+    }
+    
+    /**
+     * Timings and totals of this job, or null when it is skipped.
+     */
+    public JobMetrics getMetrics()
+    {
+        return (this.skip) ? null : this.metrics;
     }
     
     public String getWorkingName()
@@ -181,8 +960,15 @@ public class DirectoryZipper
     private static class FileCounter
     {
         private long totalFiles = 0;
+        private long totalBytes = 0;
         private long completedFiles = 0;
+        private long completedBytes = 0;
         private long skippedFiles = 0;
+        private long reusedFiles = 0;
+        private long duplicateFiles = 0;
+        private long storedFiles = 0;
+        private long storedBytes = 0;
+        private long unhashedFiles = 0;
     }
     
     // ZipBuilder
@@ -190,6 +976,24 @@ public class DirectoryZipper
     public static class Builder
     {
         private boolean isRecursive = true;
+        private int threads = 1;
+        private int walkThreads = 1;
+        private int prefetch = 0;
+        private boolean physicalOrder = false;
+        private long solidBlockSize = 0;
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private CompressionPolicy policy = CompressionPolicy.uniform();
+        private ArchiveFormat format = ArchiveFormat.ZIP;
+        private boolean isIncremental = false;
+        private boolean compareChecksums = false;
+        private boolean reuse = false;
+        private boolean deduplicate = false;
+        private boolean hashManifest = false;
+        private long volumeSize = 0;
+        private File stream = null;
+        private int checkpointInterval = 0;
+        private int consistencyRetries = -1;
+        private IoLimits limits = IoLimits.unlimited();
         
         private String prefix = null;
         private String date = null;
@@ -253,6 +1057,218 @@ public class DirectoryZipper
             return this;
         }
         
+        public Builder threads(int threads)
+        {
+            if (threads < 1)
+            {
+                throw new IllegalArgumentException("Need at least one thread, got " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+        
+        /**
+         * Number of directories listed at once while scanning the source. More
+         * than one helps on network file systems; the result is the same either way.
+         */
+        public Builder walkThreads(int threads)
+        {
+            if (threads < 1)
+            {
+                throw new IllegalArgumentException("Need at least one walker thread, got " + threads);
+            }
+            this.walkThreads = threads;
+            return this;
+        }
+        
+        /**
+         * Number of files, or 256 KB pieces of larger ones, read ahead of the
+         * compressing threads, or 0 to read each on the thread compressing it.
+         * Helps when opening and reading many small files is what holds the zip
+         * back. Each takes up to about half a megabyte of buffers. Zips only.
+         */
+        public Builder prefetch(int files)
+        {
+            if (files < 0)
+            {
+                throw new IllegalArgumentException("Prefetch can't be negative, got " + files);
+            }
+            this.prefetch = files;
+            return this;
+        }
+        
+        /**
+         * Compress tar archives in independent blocks of about this many bytes,
+         * or 0 for one stream, with files ordered by extension and name so
+         * similar ones share a block. An index saved next to each archive says
+         * which block every file is in, so one file can be extracted without
+         * decompressing everything before it. Streams are only reordered.
+         */
+        public Builder solidBlocks(long bytes)
+        {
+            if (bytes < 0)
+            {
+                throw new IllegalArgumentException("Block size can't be negative, got " + bytes);
+            }
+            this.solidBlockSize = bytes;
+            return this;
+        }
+        
+        /**
+         * Take the SHA-256 of every file while it's read to be compressed and
+         * save them next to the archive, one manifest per volume. Archives
+         * that are streamed have nowhere to put one.
+         */
+        public Builder hashManifest(boolean toggle)
+        {
+            this.hashManifest = toggle;
+            return this;
+        }
+        
+        /**
+         * Add files in inode order rather than directory order, which on most
+         * Unix file systems cuts down on seeking across a spinning disk.
+         */
+        public Builder physicalOrder(boolean toggle)
+        {
+            this.physicalOrder = toggle;
+            return this;
+        }
+        
+        /**
+         * Deflate level from 0 (no compression) to 9 (best), or -1 for zlib's default.
+         */
+        public Builder level(int level)
+        {
+            if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            {
+                throw new IllegalArgumentException("Compression level must be between -1 and 9, got " + level);
+            }
+            this.level = level;
+            return this;
+        }
+        
+        /**
+         * Decides per file whether to deflate it at the level or store it as-is.
+         */
+        public Builder policy(CompressionPolicy policy)
+        {
+            this.policy = policy;
+            return this;
+        }
+        
+        /**
+         * Container and codec of the archive, which also decides its extension.
+         * Only zips support adaptive compression, reuse and deduplication.
+         */
+        public Builder format(ArchiveFormat format)
+        {
+            this.format = format;
+            return this;
+        }
+        
+        public Builder incremental(boolean toggle)
+        {
+            this.isIncremental = toggle;
+            return this;
+        }
+        
+        /**
+         * In incremental mode, checksum files whose modification time changed
+         * but whose size didn't, and leave them out if the content is the same.
+         */
+        public Builder compareChecksums(boolean toggle)
+        {
+            this.compareChecksums = toggle;
+            return this;
+        }
+        
+        /**
+         * Copy the compressed data of files that haven't changed since the
+         * previous archive of the same source, instead of deflating them again.
+         */
+        public Builder reuse(boolean toggle)
+        {
+            this.reuse = toggle;
+            return this;
+        }
+        
+        /**
+         * Compress each distinct file content once, copying the compressed
+         * data for any further files with the same content.
+         */
+        public Builder deduplicate(boolean toggle)
+        {
+            this.deduplicate = toggle;
+            return this;
+        }
+        
+        /**
+         * Split the output into numbered archives of at most this many bytes,
+         * each of which can be extracted on its own, or 0 not to split.
+         */
+        public Builder volumeSize(long bytes)
+        {
+            if (bytes < 0)
+            {
+                throw new IllegalArgumentException("Volume size can't be negative, got " + bytes);
+            }
+            this.volumeSize = bytes;
+            return this;
+        }
+        
+        /**
+         * Stream the archive to a pipe, or to {@link #STANDARD_OUTPUT}, instead of
+         * writing it to the output directory. Streams can't be read back, so
+         * reuse, deduplication, incremental indexes and volumes are turned off.
+         */
+        public Builder stream(File target)
+        {
+            this.stream = target;
+            return this;
+        }
+        
+        /**
+         * Record progress in a journal at most this many seconds apart, so an
+         * interrupted zip carries on from its last checkpoint when run again,
+         * or 0 for no checkpoints. Only unsplit zips written to disk are checkpointed.
+         */
+        public Builder checkpoints(int seconds)
+        {
+            if (seconds < 0)
+            {
+                throw new IllegalArgumentException("Checkpoint interval can't be negative, got " + seconds);
+            }
+            this.checkpointInterval = seconds;
+            return this;
+        }
+        
+        /**
+         * Check every file's size and modification time just before and after
+         * reading it, reporting files that changed in between, or -1 not to.
+         * Zips written to disk read a changed file again up to {@code retries}
+         * times, unless deduplicating; other archives only report it.
+         */
+        public Builder consistency(int retries)
+        {
+            if (retries < -1)
+            {
+                throw new IllegalArgumentException("Retries can't be negative, got " + retries);
+            }
+            this.consistencyRetries = retries;
+            return this;
+        }
+        
+        /**
+         * Read, write and open files under these limits, which can be shared
+         * with other zippers to hold them all to the same budget.
+         */
+        public Builder limits(IoLimits limits)
+        {
+            this.limits = limits;
+            return this;
+        }
+        
         public DirectoryZipper build()
         {
             validate("prefix", this.prefix);
@@ -260,13 +1276,41 @@ public class DirectoryZipper
             validate("source", this.sourceDirectory);
             validate("output", this.outputDirectory);
             validate("filter", this.filter);
+            validate("policy", this.policy);
+            validate("format", this.format);
+            validate("limits", this.limits);
             
             String source = sourceDirectory.getName().replaceAll("\\.|\\" + File.separator, "").replaceAll(" ", "_");
             String name = prefix + "." + date + ((source.isEmpty()) ? "" : "." + source);
             
-            DirectoryZipper zip = new DirectoryZipper(sourceDirectory, outputDirectory, name, filter);
+            DirectoryZipper zip = new DirectoryZipper(sourceDirectory, outputDirectory, name, format, (stream == null) ? volumeSize : 0, stream, filter);
             
             zip.isRecursive = this.isRecursive;
+            zip.threads = this.threads;
+            zip.walkThreads = this.walkThreads;
+            zip.prefetch = (format == ArchiveFormat.ZIP) ? this.prefetch : 0;
+            zip.physicalOrder = this.physicalOrder;
+            zip.solidBlockSize = (format != ArchiveFormat.ZIP) ? this.solidBlockSize : 0;
+            zip.level = this.level;
+            zip.policy = (format == ArchiveFormat.ZIP) ? this.policy.copy(this.limits) : CompressionPolicy.uniform();
+            zip.compareChecksums = this.compareChecksums;
+            zip.deduplicate = this.deduplicate && this.stream == null;
+            zip.hashManifest = this.hashManifest && this.stream == null;
+            zip.checkpointInterval = (format == ArchiveFormat.ZIP && this.stream == null && this.volumeSize == 0) ? this.checkpointInterval : 0;
+            zip.consistency = (this.consistencyRetries < 0) ? null : new ConsistencyCheck(this.consistencyRetries);
+            zip.limits = this.limits;
+            zip.metrics = new JobMetrics(sourceDirectory.getPath(), zip.completeOutput.getPath(), format, this.threads);
+            
+            if (this.reuse && format == ArchiveFormat.ZIP && this.stream == null)
+            {
+                String suffix = (source.isEmpty()) ? "" : Pattern.quote("." + source);
+                zip.previousArchives = Pattern.compile(Pattern.quote(prefix) + "\\.[a-zA-Z0-9_-]+" + suffix + "\\.zip");
+            }
+            
+            if (this.isIncremental && this.stream == null)
+            {
+                zip.index = new File(outputDirectory, prefix + ((source.isEmpty()) ? "" : "." + source) + ".index");
+            }
             
             return zip;
         }
@@ -0,0 +1,172 @@
+package com.rezzedup.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recognises files whose content was already added to the archive.
+ * <p>
+ * Only files sharing their size with another file can be duplicates, so
+ * those are the only ones hashed; everything else costs a binary search.
+ * Digests are SHA-256 cut to 128 bits and kept in a map capped at a fixed
+ * number of entries, dropping the least recently matched first, so memory
+ * stays flat however large the tree is. A duplicate that has been dropped
+ * is simply compressed again.
+ */
+final class DuplicateFinder
+{
+    static final int DEFAULT_CAPACITY = 128 * 1024;
+    
+    private final long[] sharedSizes;
+    private final Map<Digest, ZipWriter.Entry> originals;
+    private final byte[] buffer = new byte[64 * 1024];
+    private final MessageDigest sha256;
+    private final IoLimits limits;
+    
+    /**
+     * @param limits what files are hashed under
+     */
+    DuplicateFinder(List<Manifest.Entry> entries, int capacity, IoLimits limits)
+    {
+        this.limits = limits;
+        
+        long[] sizes = new long[entries.size()];
+        int count = 0;
+        
+        for (Manifest.Entry entry : entries)
+        {
+            if (!entry.isDirectory() && entry.getSize() > 0)
+            {
+                sizes[count++] = entry.getSize();
+            }
+        }
+        
+        Arrays.sort(sizes, 0, count);
+        int shared = 0;
+        
+        for (int i = 1; i < count; i++)
+        {
+            if (sizes[i] == sizes[i - 1] && (shared == 0 || sizes[shared - 1] != sizes[i]))
+            {
+                sizes[shared++] = sizes[i];
+            }
+        }
+        
+        this.sharedSizes = Arrays.copyOf(sizes, shared);
+        this.originals = new LinkedHashMap<Digest, ZipWriter.Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Digest, ZipWriter.Entry> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+        
+        try
+        {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new ZipperException("SHA-256 is not available", e);
+        }
+    }
+    
+    /**
+     * Hashes the file if another file of the same size exists.
+     *
+     * @return the file's digest, or null if it can't have a duplicate or can't be read
+     */
+    Digest digest(Manifest.Entry entry)
+    {
+        if (Arrays.binarySearch(this.sharedSizes, entry.getSize()) < 0)
+        {
+            return null;
+        }
+        
+        this.sha256.reset();
+        this.limits.open();
+        
+        try (InputStream in = Files.newInputStream(entry.getPath()))
+        {
+            int read;
+            
+            while ((read = in.read(this.buffer)) > 0)
+            {
+                this.limits.read(read);
+                this.sha256.update(this.buffer, 0, read);
+            }
+        }
+        catch (IOException io)
+        {
+            return null;
+        }
+        
+        ByteBuffer hash = ByteBuffer.wrap(this.sha256.digest());
+        return new Digest(hash.getLong(), hash.getLong(), entry.getSize());
+    }
+    
+    /**
+     * The entry first added with this content, if it's still remembered.
+     */
+    ZipWriter.Entry original(Digest digest)
+    {
+        return this.originals.get(digest);
+    }
+    
+    void remember(Digest digest, ZipWriter.Entry entry)
+    {
+        this.originals.put(digest, entry);
+    }
+    
+    /**
+     * Forgets every original, for when later files go into another archive.
+     */
+    void forget()
+    {
+        this.originals.clear();
+    }
+    
+    // Digest
+    
+    static final class Digest
+    {
+        private final long high;
+        private final long low;
+        private final long size;
+        
+        private Digest(long high, long low, long size)
+        {
+            this.high = high;
+            this.low = low;
+            this.size = size;
+        }
+        
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Digest))
+            {
+                return false;
+            }
+            
+            Digest digest = (Digest) other;
+            return this.high == digest.high && this.low == digest.low && this.size == digest.size;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return (int) (this.high ^ (this.high >>> 32));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.rezzedup.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The state of every archived entry as of the last completed run: size,
+ * modification time and CRC-32. Stored as a small gzipped binary file next
+ * to the archives so the next incremental run can tell what changed.
+ */
+public final class FileIndex
+{
+    private static final int MAGIC = 0x5A495849;
+    private static final int VERSION = 1;
+    
+    private final Map<String, Record> records = new HashMap<>();
+    
+    /**
+     * Reads an index, or returns an empty one when the file doesn't exist.
+     */
+    public static FileIndex load(File file) throws IOException
+    {
+        FileIndex index = new FileIndex();
+        
+        if (!file.isFile())
+        {
+            return index;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException("Not a Zip-It index: " + file);
+            }
+            
+            int count = in.readInt();
+            
+            for (int i = 0; i < count; i++)
+            {
+                String name = in.readUTF();
+                index.records.put(name, new Record(in.readLong(), in.readLong(), in.readLong()));
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Replaces the given file with this index, going through a temp file so
+     * an interrupted save never leaves a truncated index behind.
+     */
+    public void save(File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".temp");
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp)))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.records.size());
+            
+            for (Map.Entry<String, Record> entry : this.records.entrySet())
+            {
+                Record record = entry.getValue();
+                
+                out.writeUTF(entry.getKey());
+                out.writeLong(record.size);
+                out.writeLong(record.lastModified);
+                out.writeLong(record.crc);
+            }
+        }
+        
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    public Record get(String name)
+    {
+        return this.records.get(name);
+    }
+    
+    public void put(String name, Record record)
+    {
+        this.records.put(name, record);
+    }
+    
+    public Set<String> getNames()
+    {
+        return Collections.unmodifiableSet(this.records.keySet());
+    }
+    
+    public boolean isEmpty()
+    {
+        return this.records.isEmpty();
+    }
+    
+    // Record
+    
+    public static final class Record
+    {
+        private final long size;
+        private final long lastModified;
+        private final long crc;
+        
+        public Record(long size, long lastModified, long crc)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+        
+        public long getSize()
+        {
+            return this.size;
+        }
+        
+        public long getLastModified()
+        {
+            return this.lastModified;
+        }
+        
+        public long getCrc()
+        {
+            return this.crc;
+        }
+        
+        public Record withLastModified(long lastModified)
+        {
+            return new Record(this.size, lastModified, this.crc);
+        }
+    }
+}
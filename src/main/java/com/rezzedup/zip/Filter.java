@@ -3,4 +3,13 @@ package com.rezzedup.zip;
 public interface Filter<T>
 {
     boolean accepts(T t);
+    
+    /**
+     * Whether anything inside the given directory could be accepted.
+     * Returning false lets a traversal skip the whole subtree.
+     */
+    default boolean acceptsAnyWithin(T directory)
+    {
+        return true;
+    }
 }
@@ -0,0 +1,169 @@
+package com.rezzedup.zip;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SHA-256 of every file in an archive, taken while the file was read to
+ * be compressed. Stored next to the archive in the format of
+ * {@code sha256sum}, so an extracted copy can be checked with
+ * {@code sha256sum -c} as well as the archive itself with {@link ArchiveVerifier}.
+ */
+public final class HashManifest
+{
+    private static final int HASH_LENGTH = 32;
+    
+    private final Map<String, byte[]> hashes = new LinkedHashMap<>();
+    
+    HashManifest() {}
+    
+    /**
+     * A new SHA-256 digest, which every Java platform is required to have.
+     */
+    static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public static HashManifest load(File file) throws IOException
+    {
+        HashManifest manifest = new HashManifest();
+        
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8)))
+        {
+            int number = 0;
+            
+            for (String line = in.readLine(); line != null; line = in.readLine())
+            {
+                number += 1;
+                
+                if (line.isEmpty())
+                {
+                    continue;
+                }
+                
+                // Names with a backslash or line break are escaped, and the line marked with a leading backslash.
+                boolean escaped = line.startsWith("\\");
+                String record = (escaped) ? line.substring(1) : line;
+                
+                if (record.length() < HASH_LENGTH * 2 + 2 || record.charAt(HASH_LENGTH * 2) != ' ')
+                {
+                    throw new IOException("Malformed line " + number + " in " + file);
+                }
+                
+                String name = record.substring(HASH_LENGTH * 2 + 2);
+                manifest.add((escaped) ? unescape(name) : name, parse(record.substring(0, HASH_LENGTH * 2), file, number));
+            }
+        }
+        return manifest;
+    }
+    
+    void save(File file) throws IOException
+    {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)))
+        {
+            for (Map.Entry<String, byte[]> entry : this.hashes.entrySet())
+            {
+                String name = entry.getKey();
+                boolean escaped = name.indexOf('\\') >= 0 || name.indexOf('\n') >= 0;
+                
+                out.write((escaped) ? "\\" : "");
+                out.write(hex(entry.getValue()));
+                out.write("  ");
+                out.write((escaped) ? name.replace("\\", "\\\\").replace("\n", "\\n") : name);
+                out.write('\n');
+            }
+        }
+    }
+    
+    void add(String name, byte[] hash)
+    {
+        this.hashes.put(name, hash);
+    }
+    
+    /**
+     * @return the entry's hash, or null if it has none
+     */
+    public byte[] get(String name)
+    {
+        return this.hashes.get(name);
+    }
+    
+    public Set<String> getNames()
+    {
+        return Collections.unmodifiableSet(this.hashes.keySet());
+    }
+    
+    public int size()
+    {
+        return this.hashes.size();
+    }
+    
+    static String hex(byte[] hash)
+    {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        
+        for (byte b : hash)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+    
+    private static byte[] parse(String hex, File file, int number) throws IOException
+    {
+        byte[] hash = new byte[HASH_LENGTH];
+        
+        for (int i = 0; i < HASH_LENGTH; i++)
+        {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            
+            if (high < 0 || low < 0)
+            {
+                throw new IOException("Malformed hash on line " + number + " in " + file);
+            }
+            hash[i] = (byte) ((high << 4) | low);
+        }
+        return hash;
+    }
+    
+    private static String unescape(String name)
+    {
+        StringBuilder unescaped = new StringBuilder(name.length());
+        
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            
+            if (c == '\\' && i + 1 < name.length())
+            {
+                char next = name.charAt(++i);
+                unescaped.append((next == 'n') ? '\n' : next);
+                continue;
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+}
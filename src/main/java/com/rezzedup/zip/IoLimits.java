@@ -0,0 +1,224 @@
+package com.rezzedup.zip;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how fast source files are read, archives are written and files are
+ * opened, so a backup running next to something latency sensitive doesn't
+ * take the disk over. One instance is shared by every job of a run, so the
+ * limits hold for the run as a whole however many jobs and threads there are.
+ * <p>
+ * In adaptive mode the read rate is also steered by how long reads take:
+ * whenever their average latency, per 64 KB read, goes past the target the
+ * rate is cut by 30%, and while it stays under the rate grows back by 25% at
+ * a time, up to the read limit if there is one and otherwise until reads are
+ * left alone again.
+ */
+public final class IoLimits
+{
+    private static final long LATENCY_UNIT = 64 * 1024;
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final long ADJUST_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final double BACK_OFF = 0.7;
+    private static final double RECOVER = 1.25;
+    private static final double MIN_READ_RATE = 1024 * 1024;
+    
+    private Throttle reads = null;
+    private Throttle writes = null;
+    private Throttle opens = null;
+    private double readLimit = Double.POSITIVE_INFINITY;
+    private long targetLatency = 0;
+    
+    private double latency = 0;
+    private long readSinceAdjusted = 0;
+    private long adjusted = System.nanoTime();
+    private double peakReadRate = 0;
+    
+    private IoLimits() {}
+    
+    public static IoLimits unlimited()
+    {
+        return new IoLimits();
+    }
+    
+    public IoLimits readBytesPerSecond(long bytes)
+    {
+        this.readLimit = bytes;
+        this.reads = new Throttle(bytes);
+        return this;
+    }
+    
+    public IoLimits writeBytesPerSecond(long bytes)
+    {
+        this.writes = new Throttle(bytes);
+        return this;
+    }
+    
+    public IoLimits filesPerSecond(long files)
+    {
+        this.opens = new Throttle(files);
+        return this;
+    }
+    
+    /**
+     * Slow reading down whenever reads take longer than this on average.
+     */
+    public IoLimits adaptive(long targetLatency, TimeUnit unit)
+    {
+        this.targetLatency = unit.toNanos(targetLatency);
+        
+        if (this.reads == null)
+        {
+            this.reads = new Throttle(Double.POSITIVE_INFINITY);
+        }
+        return this;
+    }
+    
+    public boolean isUnlimited()
+    {
+        return this.reads == null && this.writes == null && this.opens == null;
+    }
+    
+    /**
+     * Waits until a file may be opened.
+     *
+     * @return nanoseconds spent waiting
+     */
+    long open()
+    {
+        return (this.opens == null) ? 0 : this.opens.acquire(1);
+    }
+    
+    /**
+     * Waits until {@code bytes} may be read from a source.
+     *
+     * @return nanoseconds spent waiting
+     */
+    long read(long bytes)
+    {
+        return (this.reads == null) ? 0 : this.reads.acquire(bytes);
+    }
+    
+    /**
+     * Waits until {@code bytes} may be written to an archive.
+     *
+     * @return nanoseconds spent waiting
+     */
+    long write(long bytes)
+    {
+        return (this.writes == null) ? 0 : this.writes.acquire(bytes);
+    }
+    
+    /**
+     * Reports how long a read of {@code bytes} took, for adaptive mode to steer by.
+     */
+    void readTook(long nanos, long bytes)
+    {
+        if (this.targetLatency == 0)
+        {
+            return;
+        }
+        
+        synchronized (this)
+        {
+            double perUnit = nanos / Math.max(1.0, bytes / (double) LATENCY_UNIT);
+            this.latency = (this.latency == 0) ? perUnit : this.latency + LATENCY_WEIGHT * (perUnit - this.latency);
+            this.readSinceAdjusted += bytes;
+            
+            long now = System.nanoTime();
+            
+            if (now - this.adjusted < ADJUST_INTERVAL)
+            {
+                return;
+            }
+            
+            double observed = this.readSinceAdjusted * 1e9 / (now - this.adjusted);
+            double rate = this.reads.getRate();
+            this.peakReadRate = Math.max(this.peakReadRate, observed);
+            this.readSinceAdjusted = 0;
+            this.adjusted = now;
+            
+            if (this.latency > this.targetLatency)
+            {
+                // Cut from what's actually being read, in case the rate wasn't what held reads back.
+                this.reads.setRate(Math.max(MIN_READ_RATE, Math.min(rate, observed) * BACK_OFF));
+            }
+            else if (!Double.isInfinite(rate))
+            {
+                double grown = rate * RECOVER;
+                boolean free = Double.isInfinite(this.readLimit) && grown > 2 * this.peakReadRate;
+                this.reads.setRate((free) ? Double.POSITIVE_INFINITY : Math.min(this.readLimit, grown));
+            }
+        }
+    }
+    
+    /**
+     * Wraps an archive's output so what's written to it counts against the
+     * write limit, adding the time held back to {@code metrics}.
+     */
+    OutputStream writing(OutputStream out, JobMetrics metrics)
+    {
+        if (this.writes == null)
+        {
+            return out;
+        }
+        
+        return new FilterOutputStream(out)
+        {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException
+            {
+                metrics.addThrottle(IoLimits.this.write(length));
+                this.out.write(bytes, offset, length);
+            }
+        };
+    }
+    
+    @Override
+    public String toString()
+    {
+        if (isUnlimited())
+        {
+            return "None";
+        }
+        
+        List<String> limits = new ArrayList<>();
+        
+        if (!Double.isInfinite(this.readLimit))
+        {
+            limits.add("read " + bytes(this.readLimit) + "/s");
+        }
+        if (this.writes != null)
+        {
+            limits.add("write " + bytes(this.writes.getRate()) + "/s");
+        }
+        if (this.opens != null)
+        {
+            limits.add((long) this.opens.getRate() + " files/s");
+        }
+        if (this.targetLatency > 0)
+        {
+            limits.add("adaptive, reads under " + TimeUnit.NANOSECONDS.toMillis(this.targetLatency) + " ms");
+        }
+        
+        return String.join(", ", limits);
+    }
+    
+    private static String bytes(double bytes)
+    {
+        String[] units = {"B", "KB", "MB", "GB"};
+        int unit = 0;
+        
+        while (bytes >= 1024 && unit < units.length - 1)
+        {
+            bytes /= 1024;
+            unit += 1;
+        }
+        return ((bytes == Math.rint(bytes)) ? String.valueOf((long) bytes) : String.format("%.1f", bytes)) + " " + units[unit];
+    }
+}
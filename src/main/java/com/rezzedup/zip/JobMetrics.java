@@ -0,0 +1,324 @@
+package com.rezzedup.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and totals for one archive job, written out as JSON or as a
+ * Prometheus textfile once every job has finished.
+ * <p>
+ * Walking includes filtering. Reading and compressing are summed over all
+ * worker threads, so with several threads they can add up to more than the
+ * job took. Writing is the time the writing thread spent on the output,
+ * and waiting the time it spent waiting on workers. Throttling is the time
+ * reading and writing the archive's data was held back by I/O limits, apart
+ * from data sent straight from file to file, which is held back as writing.
+ */
+public final class JobMetrics
+{
+    private final String source;
+    private final String output;
+    private final ArchiveFormat format;
+    private final int threads;
+    
+    private final LongAdder walkNanos = new LongAdder();
+    private final LongAdder filterNanos = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder throttleNanos = new LongAdder();
+    
+    private volatile long finishedAt = 0;
+    private volatile long totalNanos = 0;
+    private volatile boolean success = false;
+    private volatile long files = 0;
+    private volatile long skipped = 0;
+    private volatile long stored = 0;
+    private volatile long reused = 0;
+    private volatile long duplicates = 0;
+    private volatile long inconsistent = 0;
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+    
+    JobMetrics(String source, String output, ArchiveFormat format, int threads)
+    {
+        this.source = source;
+        this.output = output;
+        this.format = format;
+        this.threads = threads;
+    }
+    
+    void addWalk(long nanos)
+    {
+        this.walkNanos.add(nanos);
+    }
+    
+    void addFilter(long nanos)
+    {
+        this.filterNanos.add(nanos);
+    }
+    
+    void addRead(long nanos)
+    {
+        this.readNanos.add(nanos);
+    }
+    
+    void addCompress(long nanos, long bytes)
+    {
+        this.compressNanos.add(nanos);
+        this.compressedBytes.add(bytes);
+    }
+    
+    void addWrite(long nanos)
+    {
+        this.writeNanos.add(nanos);
+    }
+    
+    void addWait(long nanos)
+    {
+        this.waitNanos.add(nanos);
+    }
+    
+    void addThrottle(long nanos)
+    {
+        this.throttleNanos.add(nanos);
+    }
+    
+    void totals(long files, long skipped, long stored, long reused, long duplicates, long inconsistent, long bytesIn, long bytesOut)
+    {
+        this.files = files;
+        this.skipped = skipped;
+        this.stored = stored;
+        this.reused = reused;
+        this.duplicates = duplicates;
+        this.inconsistent = inconsistent;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+    
+    void finished(long totalNanos, boolean success)
+    {
+        this.totalNanos = totalNanos;
+        this.success = success;
+        this.finishedAt = System.currentTimeMillis();
+    }
+    
+    /**
+     * Average time spent compressing a byte so far, or 0 if nothing was compressed yet.
+     */
+    double getCompressNanosPerByte()
+    {
+        long bytes = this.compressedBytes.sum();
+        return (bytes == 0) ? 0 : this.compressNanos.sum() / (double) bytes;
+    }
+    
+    public boolean isSuccess()
+    {
+        return this.success;
+    }
+    
+    public double getSeconds()
+    {
+        return this.totalNanos / 1e9;
+    }
+    
+    public double getCompressionRatio()
+    {
+        return (this.bytesOut == 0) ? 0 : this.bytesIn / (double) this.bytesOut;
+    }
+    
+    public double getFilesPerSecond()
+    {
+        return (this.totalNanos == 0) ? 0 : this.files / getSeconds();
+    }
+    
+    public double getBytesPerSecond()
+    {
+        return (this.totalNanos == 0) ? 0 : this.bytesIn / getSeconds();
+    }
+    
+    /**
+     * Writes the report for the given jobs, as a Prometheus textfile if the
+     * file name ends in {@code .prom} and as JSON otherwise. The file is
+     * replaced in one move so collectors never read half of it.
+     */
+    public static void write(File file, List<JobMetrics> jobs) throws IOException
+    {
+        StringBuilder report = new StringBuilder();
+        
+        if (file.getName().endsWith(".prom"))
+        {
+            prometheus(report, jobs);
+        }
+        else
+        {
+            json(report, jobs);
+        }
+        
+        File temp = new File(file.getPath() + ".temp");
+        
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(report.toString());
+        }
+        
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private static void json(StringBuilder out, List<JobMetrics> jobs)
+    {
+        out.append("{\n  \"jobs\": [");
+        
+        for (int i = 0; i < jobs.size(); i++)
+        {
+            JobMetrics job = jobs.get(i);
+            
+            out.append((i == 0) ? "\n" : ",\n").append("    {");
+            out.append("\"source\": ").append(quote(job.source));
+            out.append(", \"output\": ").append(quote(job.output));
+            out.append(", \"format\": ").append(quote(job.format.getName()));
+            out.append(", \"threads\": ").append(job.threads);
+            out.append(", \"success\": ").append(job.success);
+            out.append(", \"finished_at\": ").append(job.finishedAt / 1000);
+            out.append(", \"seconds\": ").append(number(job.getSeconds()));
+            out.append(", \"phases\": {");
+            out.append("\"walk\": ").append(seconds(job.walkNanos));
+            out.append(", \"filter\": ").append(seconds(job.filterNanos));
+            out.append(", \"read\": ").append(seconds(job.readNanos));
+            out.append(", \"compress\": ").append(seconds(job.compressNanos));
+            out.append(", \"write\": ").append(seconds(job.writeNanos));
+            out.append(", \"wait\": ").append(seconds(job.waitNanos));
+            out.append(", \"throttle\": ").append(seconds(job.throttleNanos));
+            out.append("}");
+            out.append(", \"files\": ").append(job.files);
+            out.append(", \"skipped\": ").append(job.skipped);
+            out.append(", \"stored\": ").append(job.stored);
+            out.append(", \"reused\": ").append(job.reused);
+            out.append(", \"duplicates\": ").append(job.duplicates);
+            out.append(", \"inconsistent\": ").append(job.inconsistent);
+            out.append(", \"bytes_in\": ").append(job.bytesIn);
+            out.append(", \"bytes_out\": ").append(job.bytesOut);
+            out.append(", \"compression_ratio\": ").append(number(job.getCompressionRatio()));
+            out.append(", \"files_per_second\": ").append(number(job.getFilesPerSecond()));
+            out.append(", \"bytes_per_second\": ").append(number(job.getBytesPerSecond()));
+            out.append("}");
+        }
+        out.append("\n  ]\n}\n");
+    }
+    
+    private static void prometheus(StringBuilder out, List<JobMetrics> jobs)
+    {
+        gauge(out, jobs, "zipit_job_success", "Whether the last run of the job completed (1) or failed (0).", job -> (job.success) ? 1 : 0);
+        gauge(out, jobs, "zipit_job_last_run_timestamp_seconds", "When the last run of the job finished.", job -> job.finishedAt / 1000.0);
+        gauge(out, jobs, "zipit_job_duration_seconds", "Wall time of the last run.", JobMetrics::getSeconds);
+        
+        out.append("# HELP zipit_job_phase_seconds Time spent per phase; read and compress are summed over worker threads.\n");
+        out.append("# TYPE zipit_job_phase_seconds gauge\n");
+        
+        for (JobMetrics job : jobs)
+        {
+            phase(out, job, "walk", job.walkNanos);
+            phase(out, job, "filter", job.filterNanos);
+            phase(out, job, "read", job.readNanos);
+            phase(out, job, "compress", job.compressNanos);
+            phase(out, job, "write", job.writeNanos);
+            phase(out, job, "wait", job.waitNanos);
+            phase(out, job, "throttle", job.throttleNanos);
+        }
+        
+        gauge(out, jobs, "zipit_job_files", "Files added to the archive.", job -> job.files);
+        gauge(out, jobs, "zipit_job_skipped_files", "Files and directories left out by filters.", job -> job.skipped);
+        gauge(out, jobs, "zipit_job_stored_files", "Files stored without compression.", job -> job.stored);
+        gauge(out, jobs, "zipit_job_reused_files", "Files copied from the previous archive.", job -> job.reused);
+        gauge(out, jobs, "zipit_job_duplicate_files", "Files copied from an identical file in the same archive.", job -> job.duplicates);
+        gauge(out, jobs, "zipit_job_inconsistent_files", "Files that changed while being read and were archived as read or left out.", job -> job.inconsistent);
+        gauge(out, jobs, "zipit_job_bytes_in", "Bytes of source data added.", job -> job.bytesIn);
+        gauge(out, jobs, "zipit_job_bytes_out", "Size of the archive in bytes.", job -> job.bytesOut);
+        gauge(out, jobs, "zipit_job_compression_ratio", "Source bytes per archive byte.", JobMetrics::getCompressionRatio);
+        gauge(out, jobs, "zipit_job_files_per_second", "Files added per second of wall time.", JobMetrics::getFilesPerSecond);
+        gauge(out, jobs, "zipit_job_bytes_per_second", "Source bytes added per second of wall time.", JobMetrics::getBytesPerSecond);
+    }
+    
+    private static void gauge(StringBuilder out, List<JobMetrics> jobs, String name, String help, Value value)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        
+        for (JobMetrics job : jobs)
+        {
+            out.append(name).append(labels(job, null)).append(' ').append(number(value.of(job))).append('\n');
+        }
+    }
+    
+    private static void phase(StringBuilder out, JobMetrics job, String phase, LongAdder nanos)
+    {
+        out.append("zipit_job_phase_seconds").append(labels(job, phase)).append(' ').append(seconds(nanos)).append('\n');
+    }
+    
+    private static String labels(JobMetrics job, String phase)
+    {
+        String labels = "{source=\"" + escapeLabel(job.source) + "\",format=\"" + job.format.getName() + "\"";
+        return labels + ((phase == null) ? "" : ",phase=\"" + phase + "\"") + "}";
+    }
+    
+    private static String escapeLabel(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    private static String quote(String value)
+    {
+        StringBuilder quoted = new StringBuilder("\"");
+        
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            
+            switch (c)
+            {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                {
+                    if (c < 0x20) { quoted.append(String.format("\\u%04x", (int) c)); }
+                    else { quoted.append(c); }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+    
+    private static String seconds(LongAdder nanos)
+    {
+        return number(nanos.sum() / 1e9);
+    }
+    
+    private static String number(double value)
+    {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+        {
+            return String.valueOf((long) value);
+        }
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+    
+    // Value
+    
+    @FunctionalInterface
+    private interface Value
+    {
+        double of(JobMetrics job);
+    }
+}
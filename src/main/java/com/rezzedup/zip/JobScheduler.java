@@ -0,0 +1,162 @@
+package com.rezzedup.zip;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent zip jobs on a bounded pool. The largest sources are
+ * started first so that a big directory doesn't end up running alone at the
+ * end. Every line a job prints is tagged with its working name.
+ */
+public class JobScheduler
+{
+    private final int jobs;
+    
+    public JobScheduler(int jobs)
+    {
+        this.jobs = jobs;
+    }
+    
+    public void run(List<DirectoryZipper> zippers)
+    {
+        if (this.jobs <= 1 || zippers.size() <= 1)
+        {
+            zippers.forEach(JobScheduler::runJob);
+            return;
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.jobs, zippers.size()));
+        
+        try
+        {
+            List<Job> queue = new ArrayList<>();
+            
+            for (DirectoryZipper zipper : zippers)
+            {
+                queue.add(new Job(zipper, pool.submit(() -> tagged(zipper, () -> sourceSize(zipper)))));
+            }
+            
+            for (Job job : queue)
+            {
+                job.size = await(job.sizing);
+            }
+            
+            queue.sort(Comparator.comparingLong((Job job) -> job.size).reversed());
+            
+            List<Future<?>> running = new ArrayList<>();
+            
+            for (Job job : queue)
+            {
+                running.add(pool.submit(() -> tagged(job.zipper, () -> runJob(job.zipper))));
+            }
+            
+            for (Future<?> future : running)
+            {
+                await(future);
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+    
+    private static <T> T tagged(DirectoryZipper zipper, Callable<T> task) throws Exception
+    {
+        Print.tag(zipper.getWorkingName());
+        
+        try
+        {
+            return task.call();
+        }
+        finally
+        {
+            Print.tag(null);
+        }
+    }
+    
+    private static void tagged(DirectoryZipper zipper, Runnable task)
+    {
+        Print.tag(zipper.getWorkingName());
+        
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            Print.tag(null);
+        }
+    }
+    
+    /**
+     * Runs one job, reporting rather than throwing its failure so the others
+     * carry on and are still waited for.
+     */
+    private static void runJob(DirectoryZipper zipper)
+    {
+        try
+        {
+            zipper.run();
+        }
+        catch (RuntimeException e)
+        {
+            Print.notice("Zip job failed: " + zipper.getWorkingName(), String.valueOf(e.getMessage()));
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * The job's size to order it by, or 0 if its source can't be scanned, in
+     * which case it goes last and reports the failure when it's run.
+     */
+    private static long sourceSize(DirectoryZipper zipper)
+    {
+        try
+        {
+            return zipper.getSourceSize();
+        }
+        catch (RuntimeException e)
+        {
+            return 0;
+        }
+    }
+    
+    private static <T> T await(Future<T> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ZipperException("Interrupted while waiting for zip jobs", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new ZipperException(e.getCause());
+        }
+    }
+    
+    // Job
+    
+    private static class Job
+    {
+        private final DirectoryZipper zipper;
+        private final Future<Long> sizing;
+        private long size = 0;
+        
+        private Job(DirectoryZipper zipper, Future<Long> sizing)
+        {
+            this.zipper = zipper;
+            this.sizing = sizing;
+        }
+    }
+}
@@ -7,15 +7,19 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.zeroturnaround.zip.ZipException;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.zip.Deflater;
 
 public class Main
 {
@@ -31,6 +35,28 @@ public class Main
         File output = new File("zip");
         RegexPathFilter filter = new RegexPathFilter();
         File specificSource = null;
+        boolean quiet = false;
+        int threads = 1;
+        int walkThreads = 1;
+        int prefetch = 0;
+        boolean physicalOrder = false;
+        long solidBlockSize = 0;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        CompressionPolicy policy = CompressionPolicy.uniform();
+        ArchiveFormat format = ArchiveFormat.ZIP;
+        int jobs = 1;
+        boolean incremental = false;
+        boolean compareChecksums = false;
+        boolean reuse = false;
+        boolean deduplicate = false;
+        boolean hashManifest = false;
+        File verify = null;
+        File metrics = null;
+        long volumeSize = 0;
+        File stream = null;
+        int checkpoints = 0;
+        int consistency = -1;
+        IoLimits limits = IoLimits.unlimited();
     }
     
     public static void main(String[] args)
@@ -39,10 +65,16 @@ public class Main
         {
             return;
         }
+        
+        if (OPTIONS.verify != null)
+        {
+            verify();
+            return;
+        }
     
         Print.option("Date (-d)", OPTIONS.date);
         Print.option("Prefix (-p)", OPTIONS.prefix);
-        Print.option("Output Directory (-o)", OPTIONS.output.toString());
+        Print.option("Output Directory (-o)", (OPTIONS.stream == null) ? OPTIONS.output.toString() : "Streaming to " + ((OPTIONS.stream == DirectoryZipper.STANDARD_OUTPUT) ? "standard output" : OPTIONS.stream.toString()));
         
         String source = 
             (OPTIONS.specificSource == null) 
@@ -52,6 +84,25 @@ public class Main
                     : OPTIONS.specificSource.toString();
         
         Print.option("Source (-s)", source);
+        Print.option("Output (-q)", (OPTIONS.quiet) ? "Progress summary only" : "Every file");
+        Print.option("Threads (-t)", String.valueOf(OPTIONS.threads));
+        Print.option("Walker Threads (-wt)", String.valueOf(OPTIONS.walkThreads));
+        Print.option("Prefetch (-pf)", (OPTIONS.prefetch == 0) ? "No" : OPTIONS.prefetch + " files ahead");
+        Print.option("Physical Order (-po)", (OPTIONS.physicalOrder) ? "Yes, by inode" : "No");
+        Print.option("Format (-f)", OPTIONS.format.getName() + " (" + OPTIONS.format.getExtension() + ")");
+        Print.option("Compression Level (-l)", (OPTIONS.level < 0) ? "Default" : String.valueOf(OPTIONS.level));
+        Print.option("Adaptive Compression (-a)", (OPTIONS.policy.isAdaptive()) ? "Yes" : "No");
+        Print.option("Solid Blocks (-sb)", (OPTIONS.solidBlockSize == 0) ? "No" : OPTIONS.solidBlockSize + " bytes, indexed");
+        Print.option("Volume Size (-vs)", (OPTIONS.volumeSize == 0) ? "Unlimited" : OPTIONS.volumeSize + " bytes");
+        Print.option("Concurrent Jobs (-j)", String.valueOf(OPTIONS.jobs));
+        Print.option("Reuse Previous Archive (-r)", (OPTIONS.reuse) ? "Yes" : "No");
+        Print.option("Deduplicate (-dd)", (OPTIONS.deduplicate) ? "Yes" : "No");
+        Print.option("Hash Manifest (-hm)", (OPTIONS.hashManifest) ? "Yes, SHA-256 in " + DirectoryZipper.HASH_MANIFEST_EXTENSION : "No");
+        Print.option("Metrics Report (-m)", (OPTIONS.metrics == null) ? "None" : OPTIONS.metrics.toString());
+        Print.option("Checkpoints (-c)", (OPTIONS.checkpoints == 0) ? "No" : "Every " + OPTIONS.checkpoints + " s");
+        Print.option("I/O Limits (-rl, -wl, -ol, -al)", OPTIONS.limits.toString());
+        Print.option("Consistency Check (-cs)", (OPTIONS.consistency < 0) ? "No" : (OPTIONS.consistency == 0) ? "Report changed files" : "Read changed files again up to " + OPTIONS.consistency + " times");
+        Print.option("Incremental (-i)", (OPTIONS.incremental) ? ((OPTIONS.compareChecksums) ? "Yes, comparing checksums" : "Yes") : "No");
         Print.option("File Exclusion Filters", "\n  " + String.join("\n  ", OPTIONS.filter.rawInput));
         
         String consent = Print.prompt("Is this acceptable? (Y/n)");
@@ -62,7 +113,47 @@ public class Main
             return;
         }
         
-        if (OPTIONS.output.mkdirs())
+        Print.startAsync();
+        
+        try
+        {
+            zipSources();
+        }
+        finally
+        {
+            Print.stopAsync();
+        }
+    }
+    
+    /**
+     * Checks one archive against its hash manifest, exiting with status 1 if it doesn't match.
+     */
+    private static void verify()
+    {
+        Print.option("Verify (-vf)", OPTIONS.verify.toString());
+        Print.option("Threads (-t)", String.valueOf(OPTIONS.threads));
+        
+        boolean verified;
+        
+        try
+        {
+            verified = new ArchiveVerifier(OPTIONS.verify, OPTIONS.threads).verify();
+        }
+        catch (IOException io)
+        {
+            Print.notice("Unable to verify " + OPTIONS.verify, io.getMessage());
+            verified = false;
+        }
+        
+        if (!verified)
+        {
+            System.exit(1);
+        }
+    }
+    
+    private static void zipSources()
+    {
+        if (OPTIONS.stream == null && OPTIONS.output.mkdirs())
         {
             Print.notice("Created: " + OPTIONS.output);
         }
@@ -79,6 +170,8 @@ public class Main
                 return;
             }
             
+            List<DirectoryZipper> jobs = new ArrayList<>();
+            
             for (File dir : directories)
             {
                 String path = dir.getPath();
@@ -103,45 +196,93 @@ public class Main
                     continue;
                 }
                 
-                try
-                {
-                    zip(dir);
-                }
-                catch (ZipException e)
-                {
-                    e.printStackTrace();
-                }
+                jobs.add(zip(dir));
             }
-            zipWorkingDirectory();
+            jobs.add(zipWorkingDirectory());
+            
+            new JobScheduler(OPTIONS.jobs).run(jobs);
+            writeMetrics(jobs);
         }
         else 
         {
-            if (OPTIONS.specificSource == OPTIONS.workingDirectory)
+            DirectoryZipper job = (OPTIONS.specificSource == OPTIONS.workingDirectory) ? zipWorkingDirectory() : zip(OPTIONS.specificSource);
+            
+            try
             {
-                zipWorkingDirectory();
+                job.run();
             }
-            else
+            finally
             {
-                zip(OPTIONS.specificSource);
+                writeMetrics(Collections.singletonList(job));
             }
         }
         
         Print.line("Complete.");
     }
     
-    private static void zip(File directory)
+    private static void writeMetrics(List<DirectoryZipper> jobs)
     {
-        prepare(directory).build().run();
+        if (OPTIONS.metrics == null)
+        {
+            return;
+        }
+        
+        List<JobMetrics> metrics = new ArrayList<>();
+        
+        for (DirectoryZipper job : jobs)
+        {
+            if (job.getMetrics() != null)
+            {
+                metrics.add(job.getMetrics());
+            }
+        }
+        
+        try
+        {
+            JobMetrics.write(OPTIONS.metrics, metrics);
+            Print.clarify("Wrote metrics to " + OPTIONS.metrics);
+        }
+        catch (IOException io)
+        {
+            io.printStackTrace();
+        }
+    }
+    
+    private static DirectoryZipper zip(File directory)
+    {
+        return prepare(directory).build();
     }
     
-    private static void zipWorkingDirectory()
+    private static DirectoryZipper zipWorkingDirectory()
     {
-        prepare(OPTIONS.workingDirectory).recursive(false).build().run();
+        return prepare(OPTIONS.workingDirectory).recursive(false).build();
     }
     
     private static DirectoryZipper.Builder prepare(File directory)
     {
-        return DirectoryZipper.of(directory).output(OPTIONS.output).prefix(OPTIONS.prefix).date(OPTIONS.date).filter(OPTIONS.filter);
+        return DirectoryZipper.of(directory).output(OPTIONS.output).prefix(OPTIONS.prefix).date(OPTIONS.date).filter(OPTIONS.filter).threads(OPTIONS.threads).walkThreads(OPTIONS.walkThreads)
+            .prefetch(OPTIONS.prefetch).physicalOrder(OPTIONS.physicalOrder).solidBlocks(OPTIONS.solidBlockSize)
+            .level(OPTIONS.level).policy(OPTIONS.policy).format(OPTIONS.format).incremental(OPTIONS.incremental).compareChecksums(OPTIONS.compareChecksums).reuse(OPTIONS.reuse)
+            .deduplicate(OPTIONS.deduplicate).hashManifest(OPTIONS.hashManifest).volumeSize(OPTIONS.volumeSize).stream(OPTIONS.stream)
+            .checkpoints(OPTIONS.checkpoints).consistency(OPTIONS.consistency).limits(OPTIONS.limits);
+    }
+    
+    /**
+     * Parses a byte count like 500, 64k, 20m or 4g.
+     *
+     * @return the number of bytes, or -1 if it isn't one
+     */
+    private static long parseSize(String value)
+    {
+        Matcher size = Pattern.compile("^([1-9][0-9]{0,12})([kmg]?)$").matcher(value.toLowerCase());
+        
+        if (!size.matches())
+        {
+            return -1;
+        }
+        
+        int shift = "-kmg".indexOf((size.group(2).isEmpty()) ? "-" : size.group(2)) * 10;
+        return Long.parseLong(size.group(1)) << shift;
     }
     
     private static boolean pathIsValid(String path)
@@ -238,7 +379,11 @@ public class Main
         Option overrideOutput =
             Option.builder("o")
                 .longOpt("output")
-                .desc("Override the default output directory.\n")
+                .desc
+                (
+                    "Override the default output directory.\n" +
+                    "Use '-' to stream the archive to standard output, or give a named pipe to stream into it.\n"
+                )
                 .hasArg()
                 .argName("dir")
             .build();
@@ -253,6 +398,271 @@ public class Main
                 .argName("dir")
             .build();
         options.addOption(specifySource);
+        
+        Option compressionThreads =
+            Option.builder("t")
+                .longOpt("threads")
+                .desc("Number of threads compressing each zip at the same time.\n")
+                .hasArg()
+                .argName("count")
+            .build();
+        options.addOption(compressionThreads);
+        
+        Option archiveFormat =
+            Option.builder("f")
+                .longOpt("format")
+                .desc
+                (
+                    "Archive format: zip (default), zstd (.tar.zst), lz4 (.tar.lz4) or xz (.tar.xz).\n" +
+                    "The tar formats compress the whole archive as one stream, so -a, -r and -dd only apply to zip.\n"
+                )
+                .hasArg()
+                .argName("format")
+            .build();
+        options.addOption(archiveFormat);
+        
+        Option compressionLevel =
+            Option.builder("l")
+                .longOpt("level")
+                .desc
+                (
+                    "Compression level from 0 to 9: the deflate level for zip (0 stores files as-is),\n" +
+                    "the zstd level, or the xz preset. LZ4 has a single level.\n"
+                )
+                .hasArg()
+                .argName("level")
+            .build();
+        options.addOption(compressionLevel);
+        
+        Option adaptiveCompression =
+            Option.builder("a")
+                .longOpt("adaptive")
+                .desc
+                (
+                    "Store already compressed files (jar, png, ogg, gz, ...) instead of deflating them,\n" +
+                    "and store other files if a sample from their start barely compresses.\n" +
+                    "Optionally takes more extensions to store, separated by commas.\n"
+                )
+                .hasArg()
+                .optionalArg(true)
+                .argName("ext,...")
+            .build();
+        options.addOption(adaptiveCompression);
+        
+        Option walkerThreads =
+            Option.builder("wt")
+                .longOpt("walk-threads")
+                .desc
+                (
+                    "Number of directories listed at once when scanning a source, which speeds up\n" +
+                    "network file systems. Keep it low enough not to overload the file server.\n"
+                )
+                .hasArg()
+                .argName("count")
+            .build();
+        options.addOption(walkerThreads);
+        
+        Option prefetch =
+            Option.builder("pf")
+                .longOpt("prefetch")
+                .desc
+                (
+                    "Open and read this many files (default 32) ahead of compressing them, for trees of\n" +
+                    "many small files. Each file ahead holds up to half a megabyte. Zips only.\n"
+                )
+                .hasArg()
+                .optionalArg(true)
+                .argName("files")
+            .build();
+        options.addOption(prefetch);
+        
+        Option physicalOrder =
+            Option.builder("po")
+                .longOpt("physical-order")
+                .desc("Add files in inode order, roughly where they are on disk, to cut down on seeks.\n")
+            .build();
+        options.addOption(physicalOrder);
+        
+        Option concurrentJobs =
+            Option.builder("j")
+                .longOpt("jobs")
+                .desc("Number of directories zipped at the same time, largest first.\n")
+                .hasArg()
+                .argName("count")
+            .build();
+        options.addOption(concurrentJobs);
+        
+        Option volumeSize =
+            Option.builder("vs")
+                .longOpt("volume-size")
+                .desc
+                (
+                    "Split each archive into numbered volumes of at most this size, like 500m or 4g.\n" +
+                    "Every volume can be extracted on its own.\n"
+                )
+                .hasArg()
+                .argName("size")
+            .build();
+        options.addOption(volumeSize);
+        
+        Option solidBlocks =
+            Option.builder("sb")
+                .longOpt("solid")
+                .desc
+                (
+                    "Compress tar archives in blocks of this size (default 8m), with similar files grouped\n" +
+                    "together, and save an index of which block holds each file next to the archive.\n"
+                )
+                .hasArg()
+                .optionalArg(true)
+                .argName("size")
+            .build();
+        options.addOption(solidBlocks);
+        
+        Option checkpoints =
+            Option.builder("c")
+                .longOpt("checkpoint")
+                .desc
+                (
+                    "Record progress every so many seconds (default 30) so an interrupted zip\n" +
+                    "carries on from its last checkpoint when run again, instead of starting over.\n"
+                )
+                .hasArg()
+                .optionalArg(true)
+                .argName("seconds")
+            .build();
+        options.addOption(checkpoints);
+        
+        Option consistency =
+            Option.builder("cs")
+                .longOpt("consistent")
+                .desc
+                (
+                    "Check each file's size and modification time before and after reading it, and\n" +
+                    "report files that changed meanwhile. Zips on disk read them again up to 'retries' times.\n"
+                )
+                .hasArg()
+                .optionalArg(true)
+                .argName("retries")
+            .build();
+        options.addOption(consistency);
+        
+        Option readLimit =
+            Option.builder("rl")
+                .longOpt("read-limit")
+                .desc("Read source files at most this fast per second, like 50m, across all jobs.\n")
+                .hasArg()
+                .argName("rate")
+            .build();
+        options.addOption(readLimit);
+        
+        Option writeLimit =
+            Option.builder("wl")
+                .longOpt("write-limit")
+                .desc("Write archives at most this fast per second, like 20m, across all jobs.\n")
+                .hasArg()
+                .argName("rate")
+            .build();
+        options.addOption(writeLimit);
+        
+        Option openLimit =
+            Option.builder("ol")
+                .longOpt("open-limit")
+                .desc("Open at most this many source files per second across all jobs.\n")
+                .hasArg()
+                .argName("count")
+            .build();
+        options.addOption(openLimit);
+        
+        Option adaptiveLimit =
+            Option.builder("al")
+                .longOpt("adaptive-limit")
+                .desc
+                (
+                    "Slow reading down while reads take longer than this many milliseconds per 64k\n" +
+                    "(default 20), a sign that the disk is busy, and speed back up once they don't.\n"
+                )
+                .hasArg()
+                .optionalArg(true)
+                .argName("ms")
+            .build();
+        options.addOption(adaptiveLimit);
+        
+        Option incremental =
+            Option.builder("i")
+                .longOpt("incremental")
+                .desc
+                (
+                    "Only zip files that are new or changed since the last incremental run,\n" +
+                    "plus a list of deleted files. State is kept in an index in the output directory.\n"
+                )
+            .build();
+        options.addOption(incremental);
+        
+        Option incrementalChecksums =
+            Option.builder("ic")
+                .longOpt("incremental-checksum")
+                .desc("Same as '-i', but files that were only touched are checksummed and left out if unchanged.\n")
+            .build();
+        options.addOption(incrementalChecksums);
+        
+        Option reusePrevious =
+            Option.builder("r")
+                .longOpt("reuse")
+                .desc("Copy files unchanged since the previous zip of the same source without recompressing them.\n")
+            .build();
+        options.addOption(reusePrevious);
+        
+        Option deduplicate =
+            Option.builder("dd")
+                .longOpt("dedup")
+                .desc("Compress identical files only once and copy the compressed data for the rest.\n")
+            .build();
+        options.addOption(deduplicate);
+        
+        Option hashManifest =
+            Option.builder("hm")
+                .longOpt("hash-manifest")
+                .desc
+                (
+                    "Take the SHA-256 of every file while it's compressed and save them next to the archive\n" +
+                    "in a '" + DirectoryZipper.HASH_MANIFEST_EXTENSION + "' file, in the format of sha256sum.\n"
+                )
+            .build();
+        options.addOption(hashManifest);
+        
+        Option verify =
+            Option.builder("vf")
+                .longOpt("verify")
+                .desc
+                (
+                    "Check an archive against its hash manifest instead of zipping anything,\n" +
+                    "decompressing entries on as many threads as '-t' allows.\n"
+                )
+                .hasArg()
+                .argName("archive")
+            .build();
+        options.addOption(verify);
+        
+        Option quiet =
+            Option.builder("q")
+                .longOpt("quiet")
+                .desc("Don't print every file, only periodic progress and a summary of each zip.\n")
+            .build();
+        options.addOption(quiet);
+        
+        Option metrics =
+            Option.builder("m")
+                .longOpt("metrics")
+                .desc
+                (
+                    "Write per-job timings and totals to this file when done.\n" +
+                    "A name ending in '.prom' gets the Prometheus textfile format, anything else JSON.\n"
+                )
+                .hasArg()
+                .argName("file")
+            .build();
+        options.addOption(metrics);
     
         CommandLineParser parser = new DefaultParser();
         CommandLine line;
@@ -267,6 +677,12 @@ public class Main
             return false;
         }
         
+        // Standard output carries the archive, so nothing else may be printed to it.
+        if ("-".equals(line.getOptionValue("o")))
+        {
+            Print.redirect(System.err);
+        }
+        
         for (Option option : line.getOptions())
         {
             switch (option.getOpt())
@@ -340,6 +756,14 @@ public class Main
                 case "o":
                 {
                     String value = option.getValue();
+                    File output = new File(value);
+                    
+                    // Anything that exists but is neither a directory nor a regular file is taken to be a pipe.
+                    if (value.equals("-") || (output.exists() && !output.isDirectory() && !output.isFile()))
+                    {
+                        OPTIONS.stream = (value.equals("-")) ? DirectoryZipper.STANDARD_OUTPUT : output;
+                        break;
+                    }
     
                     if (!pathIsValid(value)) 
                     {
@@ -374,19 +798,352 @@ public class Main
                     }
                     break;
                 }
+                case "t":
+                {
+                    String value = option.getValue();
+                    
+                    if (value.matches("^[1-9][0-9]{0,3}$"))
+                    {
+                        OPTIONS.threads = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid thread count", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "vs":
+                {
+                    String value = option.getValue();
+                    long size = parseSize(value);
+                    
+                    if (size > 0)
+                    {
+                        OPTIONS.volumeSize = size;
+                    }
+                    else
+                    {
+                        Print.notice("Invalid volume size", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "sb":
+                {
+                    String value = option.getValue();
+                    long size = (value == null) ? 8 << 20 : parseSize(value);
+                    
+                    if (size > 0)
+                    {
+                        OPTIONS.solidBlockSize = size;
+                    }
+                    else
+                    {
+                        Print.notice("Invalid block size", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "rl":
+                {
+                    String value = option.getValue();
+                    long rate = parseSize(value);
+                    
+                    if (rate > 0)
+                    {
+                        OPTIONS.limits.readBytesPerSecond(rate);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid read limit", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "wl":
+                {
+                    String value = option.getValue();
+                    long rate = parseSize(value);
+                    
+                    if (rate > 0)
+                    {
+                        OPTIONS.limits.writeBytesPerSecond(rate);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid write limit", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "ol":
+                {
+                    String value = option.getValue();
+                    
+                    if (value.matches("^[1-9][0-9]{0,6}$"))
+                    {
+                        OPTIONS.limits.filesPerSecond(Long.parseLong(value));
+                    }
+                    else
+                    {
+                        Print.notice("Invalid open limit", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "al":
+                {
+                    String value = option.getValue();
+                    
+                    if (value == null)
+                    {
+                        OPTIONS.limits.adaptive(20, TimeUnit.MILLISECONDS);
+                    }
+                    else if (value.matches("^[1-9][0-9]{0,4}$"))
+                    {
+                        OPTIONS.limits.adaptive(Long.parseLong(value), TimeUnit.MILLISECONDS);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid read latency target", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "wt":
+                {
+                    String value = option.getValue();
+                    
+                    if (value.matches("^[1-9][0-9]{0,2}$"))
+                    {
+                        OPTIONS.walkThreads = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid walker thread count", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "pf":
+                {
+                    String value = option.getValue();
+                    
+                    if (value == null)
+                    {
+                        OPTIONS.prefetch = 32;
+                    }
+                    else if (value.matches("^[1-9][0-9]{0,3}$"))
+                    {
+                        OPTIONS.prefetch = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid prefetch count", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "po":
+                {
+                    OPTIONS.physicalOrder = true;
+                    break;
+                }
+                case "l":
+                {
+                    String value = option.getValue();
+                    
+                    if (value.matches("^[0-9]$"))
+                    {
+                        OPTIONS.level = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid compression level", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "f":
+                {
+                    ArchiveFormat format = ArchiveFormat.byName(option.getValue());
+                    
+                    if (format == null)
+                    {
+                        Print.notice("Unknown archive format", option.getValue());
+                        return false;
+                    }
+                    OPTIONS.format = format;
+                    break;
+                }
+                case "a":
+                {
+                    OPTIONS.policy = CompressionPolicy.adaptive();
+                    String value = option.getValue();
+                    
+                    if (value != null)
+                    {
+                        OPTIONS.policy.store(value.replace(".", "").split(","));
+                    }
+                    break;
+                }
+                case "c":
+                {
+                    String value = option.getValue();
+                    
+                    if (value == null)
+                    {
+                        OPTIONS.checkpoints = 30;
+                    }
+                    else if (value.matches("^[1-9][0-9]{0,4}$"))
+                    {
+                        OPTIONS.checkpoints = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid checkpoint interval", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "cs":
+                {
+                    String value = option.getValue();
+                    
+                    if (value == null)
+                    {
+                        OPTIONS.consistency = 0;
+                    }
+                    else if (value.matches("^[0-9]$"))
+                    {
+                        OPTIONS.consistency = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid number of retries", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "j":
+                {
+                    String value = option.getValue();
+                    
+                    if (value.matches("^[1-9][0-9]{0,3}$"))
+                    {
+                        OPTIONS.jobs = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        Print.notice("Invalid job count", value);
+                        return false;
+                    }
+                    break;
+                }
+                case "ic":
+                {
+                    OPTIONS.compareChecksums = true;
+                    OPTIONS.incremental = true;
+                    break;
+                }
+                case "i":
+                {
+                    OPTIONS.incremental = true;
+                    break;
+                }
+                case "r":
+                {
+                    OPTIONS.reuse = true;
+                    break;
+                }
+                case "dd":
+                {
+                    OPTIONS.deduplicate = true;
+                    break;
+                }
+                case "hm":
+                {
+                    OPTIONS.hashManifest = true;
+                    break;
+                }
+                case "vf":
+                {
+                    File archive = new File(option.getValue());
+                    
+                    if (!archive.isFile())
+                    {
+                        Print.notice("No such archive", option.getValue());
+                        return false;
+                    }
+                    OPTIONS.verify = archive;
+                    break;
+                }
+                case "m":
+                {
+                    OPTIONS.metrics = new File(option.getValue());
+                    break;
+                }
+                case "q":
+                {
+                    OPTIONS.quiet = true;
+                    Print.verbose(false);
+                    break;
+                }
                 default:
                 {
                     Print.line("Found: " + option.getOpt() + " with: " + option.getValue());
                 }
             }
         }
+        
+        if (OPTIONS.stream != null)
+        {
+            if (OPTIONS.specificSource == null)
+            {
+                Print.notice("Streaming needs a single source", "use '-s' to pick one");
+                return false;
+            }
+            
+            if (OPTIONS.incremental || OPTIONS.reuse || OPTIONS.deduplicate || OPTIONS.volumeSize > 0)
+            {
+                Print.notice("Streamed archives can't be read back", "'-i', '-r', '-dd' and '-vs' are ignored");
+            }
+            
+            if (OPTIONS.hashManifest)
+            {
+                Print.notice("Streamed archives have nowhere to put a hash manifest", "'-hm' is ignored");
+            }
+        }
+        
+        if (OPTIONS.consistency > 0 && (OPTIONS.stream != null || OPTIONS.deduplicate || OPTIONS.format != ArchiveFormat.ZIP))
+        {
+            Print.notice("Changed files can only be read again in zips written to disk without '-dd'", "they'll be reported instead");
+        }
+        
+        if (OPTIONS.solidBlockSize > 0 && OPTIONS.format == ArchiveFormat.ZIP)
+        {
+            Print.notice("Zip entries can't share compression, so solid blocks need a tar format", "'-sb' is ignored");
+        }
+        else if (OPTIONS.solidBlockSize > 0 && OPTIONS.physicalOrder)
+        {
+            Print.notice("Solid blocks order files by similarity", "'-po' is ignored");
+        }
+        
+        if (OPTIONS.prefetch > 0 && OPTIONS.format != ArchiveFormat.ZIP)
+        {
+            Print.notice("Only zips are prefetched", "'-pf' is ignored");
+        }
         return true;
     }
     
     public static class RegexPathFilter implements Filter<String>
     {
         private final List<String> rawInput = new ArrayList<>();
-        private final List<String> patterns = new ArrayList<>();
+        private final List<String> wildcards = new ArrayList<>();
+        private final List<String> regexes = new ArrayList<>();
+        
+        private volatile PathPatterns compiled = null;
         
         public RegexPathFilter()
         {
@@ -397,50 +1154,65 @@ public class Main
         public void clearFilters()
         {
             this.rawInput.clear();
-            this.patterns.clear();
+            this.wildcards.clear();
+            this.regexes.clear();
+            this.compiled = null;
         }
         
         public RegexPathFilter addWildcardFilter(String filter)
         {
-            // explanation - http://stackoverflow.com/a/24337692
-            String regex = ("(?i)\\Q" + filter + "\\E").replace("*", "\\E.*\\Q");
-            add(filter, regex);
+            this.wildcards.add(filter);
+            this.rawInput.add(filter);
+            this.compiled = null;
             return this;
         }
         
         public RegexPathFilter addRegexFilter(String filter)
-        {
-            add(filter, "(?i)" + filter);
-            return this;
-        }
-    
-        @SuppressWarnings("ResultOfMethodCallIgnored")
-        private void add(String raw, String pattern)
         {
             try
             {
-                "test.demo".matches(pattern);
-                this.patterns.add(pattern);
-                this.rawInput.add(raw);
+                Pattern.compile(filter);
+                this.regexes.add(filter);
+                this.rawInput.add(filter);
+                this.compiled = null;
             }
             catch (PatternSyntaxException e)
             {
-                // TODO: remove stacktrace and clarify to user about failed pattern
-                e.printStackTrace();
+                Print.notice("Invalid regex filter", filter + " (" + e.getDescription() + ")");
             }
+            return this;
         }
         
-        @Override
-        public boolean accepts(String path)
+        private PathPatterns compiled()
         {
-            for (String pattern : patterns)
+            PathPatterns patterns = this.compiled;
+            
+            if (patterns == null)
             {
-                if (path.matches(pattern))
+                synchronized (this)
                 {
-                    return false;
+                    patterns = this.compiled;
+                    
+                    if (patterns == null)
+                    {
+                        patterns = new PathPatterns(this.wildcards, this.regexes);
+                        this.compiled = patterns;
+                    }
                 }
             }
-            return true;
+            return patterns;
+        }
+        
+        @Override
+        public boolean accepts(String path)
+        {
+            return !compiled().matches(path);
+        }
+        
+        @Override
+        public boolean acceptsAnyWithin(String directory)
+        {
+            return !compiled().matchesEverythingUnder(directory);
         }
     }
 }
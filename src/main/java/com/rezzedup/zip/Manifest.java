@@ -0,0 +1,89 @@
+package com.rezzedup.zip;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Every entry accepted for an archive, collected in a single walk of the
+ * source along with the sizes needed for progress reporting.
+ */
+public final class Manifest
+{
+    private final List<Entry> entries = new ArrayList<>();
+    
+    private long files = 0;
+    private long bytes = 0;
+    
+    void add(Entry entry)
+    {
+        this.entries.add(entry);
+        
+        if (!entry.isDirectory())
+        {
+            this.files += 1;
+            this.bytes += entry.size;
+        }
+    }
+    
+    public List<Entry> getEntries()
+    {
+        return Collections.unmodifiableList(this.entries);
+    }
+    
+    public long getTotalFiles()
+    {
+        return this.files;
+    }
+    
+    public long getTotalBytes()
+    {
+        return this.bytes;
+    }
+    
+    // Entry
+    
+    public static final class Entry
+    {
+        private final Path path;
+        private final String name;
+        private final boolean isDirectory;
+        private final long size;
+        private final long lastModified;
+        
+        Entry(Path path, String name, boolean isDirectory, long size, long lastModified)
+        {
+            this.path = path;
+            this.name = name;
+            this.isDirectory = isDirectory;
+            this.size = (isDirectory) ? 0 : size;
+            this.lastModified = lastModified;
+        }
+        
+        public Path getPath()
+        {
+            return this.path;
+        }
+        
+        public String getName()
+        {
+            return this.name;
+        }
+        
+        public boolean isDirectory()
+        {
+            return this.isDirectory;
+        }
+        
+        public long getSize()
+        {
+            return this.size;
+        }
+        
+        public long getLastModified()
+        {
+            return this.lastModified;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.rezzedup.zip;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+/**
+ * Walks a directory tree listing many directories at once, for file systems
+ * where every readdir and stat is a network round trip.
+ * <p>
+ * Directories are listed and their entries statted on a pool of at most
+ * {@code parallelism} threads, which is also the most requests the file
+ * server sees at a time. The results are then handed to an ordinary
+ * {@link FileVisitor} on the calling thread in the order
+ * {@link Files#walkFileTree} would have visited them, so what's archived
+ * doesn't depend on how many threads did the walking.
+ * <p>
+ * Links are followed as with {@link java.nio.file.FileVisitOption#FOLLOW_LINKS}:
+ * a link to a directory is walked like the directory, unless it leads back
+ * into a directory it's inside of, which is reported as a failure to visit
+ * it. A link whose target is gone is visited as the link itself.
+ */
+final class ParallelWalker
+{
+    // Large directories have their entries statted in batches of this many, in parallel.
+    private static final int STAT_BATCH = 256;
+    
+    private final int parallelism;
+    private final int maxDepth;
+    private final Predicate<Path> descend;
+    
+    /**
+     * @param descend whether to list a directory; must agree with what the visitor's
+     *                {@code preVisitDirectory} will say, and may be called from any thread
+     */
+    ParallelWalker(int parallelism, int maxDepth, Predicate<Path> descend)
+    {
+        this.parallelism = parallelism;
+        this.maxDepth = maxDepth;
+        this.descend = descend;
+    }
+    
+    void walk(Path root, FileVisitor<Path> visitor) throws IOException
+    {
+        Node tree = new Node(root, null);
+        tree.stat();
+        
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        
+        try
+        {
+            pool.invoke(new Listing(tree));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        
+        replay(tree, visitor);
+    }
+    
+    private boolean isListed(Node node)
+    {
+        return node.attributes != null && node.attributes.isDirectory() && node.depth < this.maxDepth;
+    }
+    
+    private FileVisitResult replay(Node node, FileVisitor<Path> visitor) throws IOException
+    {
+        if (node.attributes == null)
+        {
+            return visitor.visitFileFailed(node.path, node.failure);
+        }
+        
+        if (!isListed(node))
+        {
+            return visitor.visitFile(node.path, node.attributes);
+        }
+        
+        if (node.children == null && node.failure != null)
+        {
+            return visitor.visitFileFailed(node.path, node.failure);
+        }
+        
+        FileVisitResult result = visitor.preVisitDirectory(node.path, node.attributes);
+        
+        if (result != FileVisitResult.CONTINUE)
+        {
+            return (result == FileVisitResult.SKIP_SUBTREE) ? FileVisitResult.CONTINUE : result;
+        }
+        
+        if (node.children != null)
+        {
+            for (Node child : node.children)
+            {
+                result = replay(child, visitor);
+                
+                if (result == FileVisitResult.TERMINATE) { return result; }
+                if (result == FileVisitResult.SKIP_SIBLINGS) { break; }
+            }
+        }
+        
+        result = visitor.postVisitDirectory(node.path, node.failure);
+        return (result == FileVisitResult.SKIP_SUBTREE) ? FileVisitResult.CONTINUE : result;
+    }
+    
+    // Listing
+    
+    private final class Listing extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final Node directory;
+        
+        private Listing(Node directory)
+        {
+            this.directory = directory;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (!isListed(this.directory) || !descend.test(this.directory.path))
+            {
+                return;
+            }
+            
+            if (this.directory.isLoop())
+            {
+                this.directory.failure = new FileSystemLoopException(this.directory.path.toString());
+                return;
+            }
+            
+            List<Node> children = new ArrayList<>();
+            
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory.path))
+            {
+                for (Path child : stream)
+                {
+                    children.add(new Node(child, this.directory));
+                }
+            }
+            catch (IOException io)
+            {
+                // Couldn't be opened: reported instead of visiting the directory.
+                this.directory.failure = io;
+                return;
+            }
+            catch (DirectoryIteratorException e)
+            {
+                // Failed part way: whatever was listed is still visited.
+                this.directory.failure = e.getCause();
+            }
+            
+            this.directory.children = children;
+            
+            List<RecursiveAction> stats = new ArrayList<>();
+            
+            for (int from = 0; from < children.size(); from += STAT_BATCH)
+            {
+                List<Node> batch = children.subList(from, Math.min(children.size(), from + STAT_BATCH));
+                stats.add(new Stat(batch));
+            }
+            invokeAll(stats);
+            
+            List<Listing> directories = new ArrayList<>();
+            
+            for (Node child : children)
+            {
+                if (isListed(child))
+                {
+                    directories.add(new Listing(child));
+                }
+            }
+            invokeAll(directories);
+        }
+    }
+    
+    // Stat
+    
+    private static final class Stat extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<Node> nodes;
+        
+        private Stat(List<Node> nodes)
+        {
+            this.nodes = nodes;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            this.nodes.forEach(Node::stat);
+        }
+    }
+    
+    // Node
+    
+    private static final class Node
+    {
+        private final Path path;
+        private final Node parent;
+        private final int depth;
+        
+        private BasicFileAttributes attributes = null;
+        private IOException failure = null;
+        private List<Node> children = null;
+        
+        private Node(Path path, Node parent)
+        {
+            this.path = path;
+            this.parent = parent;
+            this.depth = (parent == null) ? 0 : parent.depth + 1;
+        }
+        
+        private void stat()
+        {
+            try
+            {
+                this.attributes = Files.readAttributes(this.path, BasicFileAttributes.class);
+            }
+            catch (IOException io)
+            {
+                try
+                {
+                    // A link to nothing, as walkFileTree reports it.
+                    this.attributes = Files.readAttributes(this.path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                }
+                catch (IOException ignored)
+                {
+                    this.failure = io;
+                }
+            }
+        }
+        
+        /**
+         * Whether this directory is also one of those it's in, reached again through a link.
+         */
+        private boolean isLoop()
+        {
+            Object key = this.attributes.fileKey();
+            
+            for (Node ancestor = this.parent; ancestor != null; ancestor = ancestor.parent)
+            {
+                Object other = ancestor.attributes.fileKey();
+                
+                if (key != null && other != null)
+                {
+                    if (key.equals(other)) { return true; }
+                    continue;
+                }
+                
+                try
+                {
+                    if (Files.isSameFile(this.path, ancestor.path)) { return true; }
+                }
+                catch (IOException io)
+                {
+                    // Can't tell, so it's walked.
+                }
+            }
+            return false;
+        }
+    }
+}
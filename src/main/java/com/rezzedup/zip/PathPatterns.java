@@ -0,0 +1,214 @@
+package com.rezzedup.zip;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled, case-insensitive set of wildcard and regex patterns.
+ * <p>
+ * Wildcards of the form {@code name}, {@code prefix*} and {@code *suffix}
+ * are kept in hash sets keyed by length, so checking a path costs one lookup
+ * per distinct length rather than one regex per filter. The remaining
+ * wildcards are merged into a single alternation, and so are the regex
+ * patterns whenever that can't change their meaning.
+ * <p>
+ * Wildcards ending in {@code *} also match everything below a directory
+ * they match, which lets a walk prune that directory. Regex patterns are
+ * never used for pruning since lookarounds and anchors make that unsafe.
+ */
+final class PathPatterns
+{
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+    
+    private final Set<String> exact = new HashSet<>();
+    private final Map<Integer, Set<String>> prefixes = new TreeMap<>();
+    private final Map<Integer, Set<String>> suffixes = new TreeMap<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final Pattern openEnded;
+    
+    /**
+     * @throws PatternSyntaxException if one of the regexes is invalid
+     */
+    PathPatterns(List<String> wildcards, List<String> regexes)
+    {
+        List<String> general = new ArrayList<>();
+        List<String> open = new ArrayList<>();
+        
+        for (String wildcard : wildcards)
+        {
+            String collapsed = wildcard.replaceAll("\\*+", "*");
+            String lower = lowerAscii(collapsed);
+            int stars = collapsed.length() - collapsed.replace("*", "").length();
+            
+            if (stars == 0)
+            {
+                this.exact.add(lower);
+            }
+            else if (stars == 1 && collapsed.endsWith("*"))
+            {
+                index(this.prefixes, lower.substring(0, lower.length() - 1));
+            }
+            else if (stars == 1 && collapsed.startsWith("*"))
+            {
+                index(this.suffixes, lower.substring(1));
+            }
+            else
+            {
+                general.add(toRegex(collapsed));
+                
+                if (collapsed.endsWith("*"))
+                {
+                    open.add(toRegex(collapsed));
+                }
+            }
+        }
+        
+        this.openEnded = (open.isEmpty()) ? null : Pattern.compile(alternation(open), Pattern.CASE_INSENSITIVE);
+        
+        if (!general.isEmpty())
+        {
+            this.patterns.add(Pattern.compile(alternation(general), Pattern.CASE_INSENSITIVE));
+        }
+        
+        if (regexes.isEmpty())
+        {
+            return;
+        }
+        
+        for (String regex : regexes)
+        {
+            Pattern.compile(regex);
+        }
+        
+        // Merging renumbers groups, which only matters to back references.
+        boolean mergeable = regexes.stream().noneMatch(regex -> BACK_REFERENCE.matcher(regex).find());
+        
+        if (mergeable)
+        {
+            try
+            {
+                this.patterns.add(Pattern.compile(alternation(regexes), Pattern.CASE_INSENSITIVE));
+                return;
+            }
+            catch (PatternSyntaxException e)
+            {
+                // e.g. the same named group in two patterns
+            }
+        }
+        
+        for (String regex : regexes)
+        {
+            this.patterns.add(Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
+        }
+    }
+    
+    boolean matches(String path)
+    {
+        String lower = lowerAscii(path);
+        
+        if (this.exact.contains(lower))
+        {
+            return true;
+        }
+        
+        for (Map.Entry<Integer, Set<String>> prefix : this.prefixes.entrySet())
+        {
+            int length = prefix.getKey();
+            
+            if (length > lower.length()) { break; }
+            if (prefix.getValue().contains(lower.substring(0, length))) { return true; }
+        }
+        
+        for (Map.Entry<Integer, Set<String>> suffix : this.suffixes.entrySet())
+        {
+            int length = suffix.getKey();
+            
+            if (length > lower.length()) { break; }
+            if (suffix.getValue().contains(lower.substring(lower.length() - length))) { return true; }
+        }
+        
+        for (Pattern pattern : this.patterns)
+        {
+            if (pattern.matcher(path).matches())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Whether every path starting with the given directory path is matched.
+     */
+    boolean matchesEverythingUnder(String directory)
+    {
+        String lower = lowerAscii(directory);
+        
+        for (Map.Entry<Integer, Set<String>> prefix : this.prefixes.entrySet())
+        {
+            int length = prefix.getKey();
+            
+            if (length > lower.length()) { break; }
+            if (prefix.getValue().contains(lower.substring(0, length))) { return true; }
+        }
+        
+        return this.openEnded != null && this.openEnded.matcher(directory).matches();
+    }
+    
+    private static void index(Map<Integer, Set<String>> index, String value)
+    {
+        index.computeIfAbsent(value.length(), length -> new HashSet<>()).add(value);
+    }
+    
+    private static String toRegex(String wildcard)
+    {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+        
+        while ((star = wildcard.indexOf('*', start)) >= 0)
+        {
+            regex.append(Pattern.quote(wildcard.substring(start, star))).append(".*");
+            start = star + 1;
+        }
+        return regex.append(Pattern.quote(wildcard.substring(start))).toString();
+    }
+    
+    private static String alternation(List<String> regexes)
+    {
+        StringBuilder combined = new StringBuilder();
+        
+        for (String regex : regexes)
+        {
+            if (combined.length() > 0) { combined.append('|'); }
+            combined.append("(?:").append(regex).append(')');
+        }
+        return combined.toString();
+    }
+    
+    /**
+     * Lower-cases ASCII letters only, matching what {@link Pattern#CASE_INSENSITIVE} ignores.
+     */
+    static String lowerAscii(String text)
+    {
+        char[] chars = null;
+        
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            
+            if (c >= 'A' && c <= 'Z')
+            {
+                if (chars == null) { chars = text.toCharArray(); }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return (chars == null) ? text : new String(chars);
+    }
+}
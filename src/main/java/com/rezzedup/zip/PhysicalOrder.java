@@ -0,0 +1,74 @@
+package com.rezzedup.zip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders files by inode number, which on ext4, XFS and most other Unix file
+ * systems roughly follows where their data sits on disk, so a spinning disk
+ * reads through them with far fewer seeks than in directory order. Java has
+ * no way to ask for a file's actual extents, so this is as close as it gets.
+ */
+final class PhysicalOrder
+{
+    private PhysicalOrder() {}
+    
+    /**
+     * Directories first, in the order given, then files by inode. Files
+     * whose inode can't be read go last, also in the order given.
+     *
+     * @return the sorted entries, or null if the file system has no inode numbers
+     */
+    static List<Manifest.Entry> sort(List<Manifest.Entry> entries)
+    {
+        List<Manifest.Entry> directories = new ArrayList<>();
+        List<Located> files = new ArrayList<>();
+        
+        for (Manifest.Entry entry : entries)
+        {
+            if (entry.isDirectory())
+            {
+                directories.add(entry);
+                continue;
+            }
+            
+            try
+            {
+                files.add(new Located(entry, (Long) Files.getAttribute(entry.getPath(), "unix:ino")));
+            }
+            catch (UnsupportedOperationException | IllegalArgumentException e)
+            {
+                return null;
+            }
+            catch (IOException io)
+            {
+                files.add(new Located(entry, Long.MAX_VALUE));
+            }
+        }
+        
+        // Stable, so ties keep the order they were given in.
+        files.sort(Comparator.comparingLong(located -> located.inode));
+        
+        List<Manifest.Entry> sorted = new ArrayList<>(entries.size());
+        sorted.addAll(directories);
+        files.forEach(located -> sorted.add(located.entry));
+        return sorted;
+    }
+    
+    // Located
+    
+    private static final class Located
+    {
+        private final Manifest.Entry entry;
+        private final long inode;
+        
+        private Located(Manifest.Entry entry, long inode)
+        {
+            this.entry = entry;
+            this.inode = inode;
+        }
+    }
+}
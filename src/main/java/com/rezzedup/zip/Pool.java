@@ -0,0 +1,45 @@
+package com.rezzedup.zip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Keeps up to a fixed number of idle objects for reuse. Taking from an empty
+ * pool creates a new object, and giving to a full one discards it, so the
+ * pool never blocks and never holds more than its capacity. Thread-safe.
+ */
+final class Pool<T>
+{
+    private final BlockingQueue<T> idle;
+    private final Supplier<T> create;
+    private final Consumer<T> discard;
+    
+    /**
+     * @param discard releases an object the pool has no room for
+     */
+    Pool(int capacity, Supplier<T> create, Consumer<T> discard)
+    {
+        this.idle = new ArrayBlockingQueue<>(capacity);
+        this.create = create;
+        this.discard = discard;
+    }
+    
+    T take()
+    {
+        T object = this.idle.poll();
+        return (object == null) ? this.create.get() : object;
+    }
+    
+    /**
+     * Returns an object, which must be ready to be taken again, to the pool.
+     */
+    void give(T object)
+    {
+        if (!this.idle.offer(object))
+        {
+            this.discard.accept(object);
+        }
+    }
+}
@@ -1,20 +1,115 @@
 package com.rezzedup.zip;
 
+import java.io.PrintStream;
 import java.util.Scanner;
 
 public final class Print
 {
+    private static final ThreadLocal<String> TAG = new ThreadLocal<>();
+    
+    private static volatile PrintStream out = System.out;
+    private static volatile AsyncConsole console = null;
+    private static volatile boolean verbose = true;
+    
     private Print() {}
     
+    /**
+     * Prefixes every line printed by the current thread with the given tag,
+     * or stops doing so when the tag is null.
+     */
+    public static void tag(String tag)
+    {
+        if (tag == null)
+        {
+            TAG.remove();
+        }
+        else
+        {
+            TAG.set(Ansi.Magenta.colorize("[" + tag + "] "));
+        }
+    }
+    
+    /**
+     * Sends all further output, prompts included, to the given stream, such
+     * as standard error when the archive itself goes to standard output.
+     */
+    public static synchronized void redirect(PrintStream stream)
+    {
+        flush();
+        out = stream;
+    }
+    
+    /**
+     * Queues output and writes it in batches from a background thread until {@link #stopAsync()}.
+     */
+    public static synchronized void startAsync()
+    {
+        if (console == null)
+        {
+            console = new AsyncConsole(out);
+        }
+    }
+    
+    /**
+     * Writes everything still queued and goes back to printing directly.
+     */
+    public static synchronized void stopAsync()
+    {
+        AsyncConsole previous = console;
+        console = null;
+        
+        if (previous != null)
+        {
+            previous.close();
+        }
+    }
+    
+    public static void flush()
+    {
+        AsyncConsole current = console;
+        
+        if (current != null)
+        {
+            current.flush();
+        }
+    }
+    
+    /**
+     * Whether per-file lines should be printed. When off, callers report
+     * rate-limited progress and a summary instead.
+     */
+    public static boolean isVerbose()
+    {
+        return verbose;
+    }
+    
+    public static void verbose(boolean toggle)
+    {
+        verbose = toggle;
+    }
+    
     public static String prompt(String prompt)
     {
-        System.out.print(prompt + " ");
+        flush();
+        out.print(prompt + " ");
+        out.flush();
         return new Scanner(System.in).nextLine().trim();
     }
     
     public static void line(String text)
     {
-        System.out.println(text);
+        String tag = TAG.get();
+        String line = (tag == null) ? text : tag + text;
+        AsyncConsole current = console;
+        
+        if (current == null)
+        {
+            out.println(line);
+        }
+        else
+        {
+            current.enqueue(line);
+        }
     }
     
     public static void format(String template, Object ... objects)
@@ -0,0 +1,245 @@
+package com.rezzedup.zip;
+
+import com.github.luben.zstd.ZstdInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Where each entry of a solid tar archive is: which block, every block being
+ * a codec frame of its own, and how far into that block's tar data it starts.
+ * Stored as a small gzipped binary file next to the archive, so one file can
+ * be extracted by decoding only the block it's in.
+ */
+public final class SolidIndex
+{
+    private static final int MAGIC = 0x5A495842;
+    private static final int VERSION = 1;
+    
+    private final ArchiveFormat format;
+    private final List<Long> blocks = new ArrayList<>();
+    private final Map<String, Location> entries = new LinkedHashMap<>();
+    
+    SolidIndex(ArchiveFormat format)
+    {
+        this.format = format;
+    }
+    
+    public static SolidIndex load(File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException("Not a Zip-It block index: " + file);
+            }
+            
+            ArchiveFormat format = ArchiveFormat.byName(in.readUTF());
+            
+            if (format == null || format == ArchiveFormat.ZIP)
+            {
+                throw new IOException("Unknown archive format in " + file);
+            }
+            
+            SolidIndex index = new SolidIndex(format);
+            int blocks = in.readInt();
+            
+            for (int i = 0; i < blocks; i++)
+            {
+                index.blocks.add(in.readLong());
+            }
+            
+            int entries = in.readInt();
+            
+            for (int i = 0; i < entries; i++)
+            {
+                index.entries.put(in.readUTF(), new Location(in.readInt(), in.readLong()));
+            }
+            return index;
+        }
+    }
+    
+    void save(File file) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file)))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(this.format.getName());
+            out.writeInt(this.blocks.size());
+            
+            for (long offset : this.blocks)
+            {
+                out.writeLong(offset);
+            }
+            
+            out.writeInt(this.entries.size());
+            
+            for (Map.Entry<String, Location> entry : this.entries.entrySet())
+            {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().block);
+                out.writeLong(entry.getValue().offset);
+            }
+        }
+    }
+    
+    /**
+     * Starts a block at this offset into the archive.
+     */
+    void startBlock(long offset)
+    {
+        this.blocks.add(offset);
+    }
+    
+    /**
+     * Records an entry starting this far into the current block's tar data.
+     */
+    void add(String name, long offset)
+    {
+        this.entries.put(name, new Location(this.blocks.size() - 1, offset));
+    }
+    
+    public ArchiveFormat getFormat()
+    {
+        return this.format;
+    }
+    
+    public int getBlockCount()
+    {
+        return this.blocks.size();
+    }
+    
+    /**
+     * Position of a block's frame in the archive.
+     */
+    long getBlockOffset(int block)
+    {
+        return this.blocks.get(block);
+    }
+    
+    /**
+     * How many entries start in each block, which are all the entries it holds.
+     */
+    int[] getEntryCounts()
+    {
+        int[] counts = new int[this.blocks.size()];
+        
+        for (Location location : this.entries.values())
+        {
+            counts[location.block] += 1;
+        }
+        return counts;
+    }
+    
+    public Set<String> getNames()
+    {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+    
+    /**
+     * Copies one entry's data out of the archive this index belongs to,
+     * decoding only as much of its block as it takes to reach it.
+     *
+     * @return whether the archive has an entry of that name
+     */
+    public boolean extract(File archive, String name, OutputStream out) throws IOException
+    {
+        Location location = this.entries.get(name);
+        
+        if (location == null)
+        {
+            return false;
+        }
+        
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ))
+        {
+            channel.position(this.blocks.get(location.block));
+            
+            InputStream block = decompressor(new BufferedInputStream(Channels.newInputStream(channel)), this.format);
+            skipFully(block, location.offset);
+            
+            TarArchiveInputStream tar = new TarArchiveInputStream(block);
+            TarArchiveEntry entry = tar.getNextEntry();
+            
+            if (entry == null || !entry.getName().equals(name))
+            {
+                throw new IOException("Block index doesn't match " + archive + " at '" + name + "'");
+            }
+            
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            
+            while ((read = tar.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, read);
+            }
+        }
+        return true;
+    }
+    
+    static InputStream decompressor(InputStream in, ArchiveFormat format) throws IOException
+    {
+        switch (format)
+        {
+            case TAR_ZSTD: return new ZstdInputStream(in);
+            case TAR_LZ4: return new LZ4FrameInputStream(in);
+            case TAR_XZ: return new XZInputStream(in);
+            default: throw new IllegalArgumentException("Not a tar format: " + format);
+        }
+    }
+    
+    private static void skipFully(InputStream in, long count) throws IOException
+    {
+        byte[] buffer = new byte[(int) Math.min(count, 64 * 1024) + 1];
+        
+        while (count > 0)
+        {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            
+            if (read < 0)
+            {
+                throw new EOFException("Block ended before the entry");
+            }
+            count -= read;
+        }
+    }
+    
+    // Location
+    
+    private static final class Location
+    {
+        private final int block;
+        private final long offset;
+        
+        private Location(int block, long offset)
+        {
+            this.block = block;
+            this.offset = offset;
+        }
+    }
+}
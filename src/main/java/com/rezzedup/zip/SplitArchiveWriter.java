@@ -0,0 +1,201 @@
+package com.rezzedup.zip;
+
+import java.io.IOException;
+
+/**
+ * Spreads entries over numbered volumes, each a complete archive of its own,
+ * starting the next volume before an entry could push the current one past
+ * the size limit. A volume is finished and handed back as soon as the next
+ * one starts, so it can be moved or uploaded while the rest are written.
+ * <p>
+ * A volume that can take entries back keeps to the limit by its real size:
+ * the entries it takes back once full are added to the next volume, in
+ * order, before anything else. For any other, whether an entry still fits
+ * is judged from what has been written plus an upper bound on what's still
+ * buffered; when that bound says no, the volume is flushed first so the
+ * decision is made on real sizes. Either way, an entry larger than the
+ * limit gets a volume to itself.
+ */
+final class SplitArchiveWriter implements ArchiveWriter
+{
+    private final long limit;
+    private final Volumes volumes;
+    
+    private Listener listener = (name, size, lastModified, crc, hash) -> {};
+    private boolean hashing = false;
+    private boolean exact = false;
+    private ArchiveWriter current = null;
+    private int volume = 0;
+    private int entries = 0;
+    private long finishedBytes = 0;
+    
+    SplitArchiveWriter(long limit, Volumes volumes) throws IOException
+    {
+        this.limit = limit;
+        this.volumes = volumes;
+        next();
+    }
+    
+    private void next() throws IOException
+    {
+        this.volume += 1;
+        this.current = this.volumes.open(this.volume);
+        this.current.onWritten((name, size, lastModified, crc, hash) -> this.listener.written(name, size, lastModified, crc, hash));
+        this.exact = this.current.limitTo(this.limit);
+        
+        if (this.hashing)
+        {
+            this.current.hashContents();
+        }
+        this.entries = 0;
+    }
+    
+    private void complete() throws IOException
+    {
+        this.current.finish();
+        this.finishedBytes += this.current.getBytesWritten();
+        this.current.close();
+        this.volumes.finished(this.volume);
+    }
+    
+    /**
+     * Starts the next volume with the entries {@code full} took back.
+     */
+    private void carryOver(ArchiveWriter full) throws IOException
+    {
+        next();
+        
+        for (Overflow entry : full.getOverflow())
+        {
+            entry.addTo(this.current);
+            this.entries += 1;
+        }
+    }
+    
+    private void makeRoom(String name, long size) throws IOException
+    {
+        if (this.exact)
+        {
+            if (!this.current.getOverflow().isEmpty())
+            {
+                ArchiveWriter full = this.current;
+                complete();
+                carryOver(full);
+            }
+            return;
+        }
+        
+        long needed = ArchiveWriter.sizeBound(name, size);
+        
+        if (this.entries == 0 || fits(needed))
+        {
+            return;
+        }
+        
+        this.current.flush();
+        
+        if (!fits(needed))
+        {
+            complete();
+            next();
+        }
+    }
+    
+    private boolean fits(long needed)
+    {
+        return this.current.getBytesWritten() + this.current.getPendingBytes() + needed <= this.limit;
+    }
+    
+    @Override
+    public void onWritten(Listener listener)
+    {
+        this.listener = listener;
+    }
+    
+    @Override
+    public void hashContents()
+    {
+        this.hashing = true;
+        this.current.hashContents();
+    }
+    
+    @Override
+    public void addDirectory(Manifest.Entry directory) throws IOException
+    {
+        makeRoom(directory.getName(), 0);
+        this.current.addDirectory(directory);
+        this.entries += 1;
+    }
+    
+    @Override
+    public Added addFile(Manifest.Entry file) throws IOException
+    {
+        makeRoom(file.getName(), file.getSize());
+        this.entries += 1;
+        return this.current.addFile(file);
+    }
+    
+    @Override
+    public void addData(String name, byte[] data, long lastModified) throws IOException
+    {
+        makeRoom(name, data.length);
+        this.current.addData(name, data, lastModified);
+        this.entries += 1;
+    }
+    
+    @Override
+    public void finish() throws IOException
+    {
+        complete();
+        
+        // Finishing writes out what's queued, which can take a volume past its limit once more.
+        while (!this.current.getOverflow().isEmpty())
+        {
+            carryOver(this.current);
+            complete();
+        }
+        this.current = null;
+    }
+    
+    @Override
+    public void flush() throws IOException
+    {
+        this.current.flush();
+    }
+    
+    @Override
+    public long getBytesWritten()
+    {
+        return this.finishedBytes + ((this.current == null) ? 0 : this.current.getBytesWritten());
+    }
+    
+    @Override
+    public long getPendingBytes()
+    {
+        return (this.current == null) ? 0 : this.current.getPendingBytes();
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        if (this.current != null)
+        {
+            this.current.close();
+        }
+    }
+    
+    // Volumes
+    
+    interface Volumes
+    {
+        /**
+         * Opens the archive for the given volume, numbered from 1.
+         */
+        ArchiveWriter open(int volume) throws IOException;
+        
+        /**
+         * Called once the volume is complete and closed.
+         */
+        void finished(int volume) throws IOException;
+    }
+}
@@ -0,0 +1,497 @@
+package com.rezzedup.zip;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a tar stream through zstd, LZ4 or xz. The whole stream is compressed
+ * as one, so per-file levels, reuse and deduplication don't apply; zstd does
+ * its own multithreading when given more than one thread. Nothing written can
+ * be taken back, so files that change while being read are only reported.
+ * <p>
+ * In solid mode the stream is cut into blocks of about a given size, each
+ * compressed as a frame of its own, with a {@link SolidIndex} saying where
+ * every entry is. Concatenated frames still decompress as one stream, so the
+ * archive restores as usual, but a single file can be had by decoding just
+ * its block. Blocks only end between entries, and the tar stream is written
+ * in single records so that nothing of an entry is held back past its end.
+ */
+final class TarArchiveWriter implements ArchiveWriter
+{
+    private static final int ZSTD_DEFAULT_LEVEL = 3;
+    private static final int XZ_DEFAULT_PRESET = LZMA2Options.PRESET_DEFAULT;
+    
+    // End-of-archive blocks and record padding, the codec's trailer, and a partly filled tar record.
+    private static final long TRAILER_BOUND = 32 * 1024;
+    
+    private static final int RECORD_SIZE = 512;
+    
+    private final CountingOutputStream counted;
+    private final OutputStream compressed;
+    private final TarArchiveOutputStream tar;
+    private final SolidBlocks blocks;
+    private final CountingOutputStream position;
+    private final long blockSize;
+    private final SolidIndex index;
+    private final File indexFile;
+    private final ConsistencyCheck consistency;
+    private final JobMetrics metrics;
+    private final IoLimits limits;
+    private final byte[] buffer = new byte[64 * 1024];
+    
+    private Listener listener = (name, size, lastModified, crc, hash) -> {};
+    private MessageDigest digest = null;
+    private boolean finished = false;
+    private long unflushed = 0;
+    private long blockStart = 0;
+    
+    /**
+     * @param blockSize   tar bytes per solid block, or 0 to compress the stream as one
+     * @param indexFile   where to save the solid blocks' index once finished
+     * @param consistency checks files for changes while they're read, or null not to
+     * @param metrics     where read and compress times are added up; compressing includes writing the archive
+     * @param limits      what files are read and the archive written under
+     */
+    TarArchiveWriter(File file, ArchiveFormat format, int threads, int level, long blockSize, File indexFile, ConsistencyCheck consistency, JobMetrics metrics, IoLimits limits) throws IOException
+    {
+        this(new FileOutputStream(file), format, threads, level, blockSize, indexFile, consistency, metrics, limits);
+    }
+    
+    /**
+     * Writes the archive to {@code out}, closing it along with this writer.
+     */
+    TarArchiveWriter(OutputStream out, ArchiveFormat format, int threads, int level, ConsistencyCheck consistency, JobMetrics metrics, IoLimits limits) throws IOException
+    {
+        this(out, format, threads, level, 0, null, consistency, metrics, limits);
+    }
+    
+    private TarArchiveWriter(OutputStream out, ArchiveFormat format, int threads, int level, long blockSize, File indexFile, ConsistencyCheck consistency, JobMetrics metrics, IoLimits limits) throws IOException
+    {
+        this.consistency = consistency;
+        this.metrics = metrics;
+        this.limits = limits;
+        this.blockSize = blockSize;
+        this.indexFile = indexFile;
+        this.counted = new CountingOutputStream(limits.writing(out, metrics));
+        
+        try
+        {
+            if (blockSize > 0)
+            {
+                this.blocks = new SolidBlocks(this.counted, format, threads, level);
+                this.compressed = new BufferedOutputStream(this.blocks, 64 * 1024);
+                this.position = new CountingOutputStream(this.compressed);
+                this.tar = new TarArchiveOutputStream(this.position, RECORD_SIZE);
+                this.index = new SolidIndex(format);
+                this.index.startBlock(0);
+            }
+            else
+            {
+                this.blocks = null;
+                this.position = null;
+                this.index = null;
+                this.compressed = new BufferedOutputStream(compressor(this.counted, format, threads, level), 64 * 1024);
+                this.tar = new TarArchiveOutputStream(this.compressed);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            this.counted.close();
+            throw e;
+        }
+        
+        this.tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        this.tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        this.tar.setAddPaxHeadersForNonAsciiNames(true);
+    }
+    
+    private static OutputStream compressor(OutputStream out, ArchiveFormat format, int threads, int level) throws IOException
+    {
+        switch (format)
+        {
+            case TAR_ZSTD:
+            {
+                ZstdOutputStream zstd = new ZstdOutputStream(out, (level <= 0) ? ZSTD_DEFAULT_LEVEL : level);
+                return (threads > 1) ? zstd.setWorkers(threads) : zstd;
+            }
+            case TAR_LZ4:
+            {
+                return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB);
+            }
+            case TAR_XZ:
+            {
+                return new XZOutputStream(out, new LZMA2Options((level < 0) ? XZ_DEFAULT_PRESET : level));
+            }
+            default:
+            {
+                throw new IllegalArgumentException("Not a tar format: " + format);
+            }
+        }
+    }
+    
+    @Override
+    public void onWritten(Listener listener)
+    {
+        this.listener = listener;
+    }
+    
+    @Override
+    public void hashContents()
+    {
+        this.digest = HashManifest.sha256();
+    }
+    
+    @Override
+    public void addDirectory(Manifest.Entry directory) throws IOException
+    {
+        TarArchiveEntry entry = new TarArchiveEntry(directory.getName());
+        entry.setModTime(modTime(directory.getLastModified()));
+        this.unflushed += ArchiveWriter.sizeBound(directory.getName(), 0);
+        
+        begin(directory.getName());
+        this.tar.putArchiveEntry(entry);
+        this.tar.closeArchiveEntry();
+        this.listener.written(directory.getName(), 0, directory.getLastModified(), 0, null);
+    }
+    
+    @Override
+    public Added addFile(Manifest.Entry file) throws IOException
+    {
+        if (this.consistency != null)
+        {
+            file = this.consistency.before(file);
+            
+            if (file == null)
+            {
+                return Added.MISSING;
+            }
+        }
+        
+        TarArchiveEntry entry = new TarArchiveEntry(file.getName());
+        entry.setModTime(modTime(file.getLastModified()));
+        entry.setSize(file.getSize());
+        this.unflushed += ArchiveWriter.sizeBound(file.getName(), file.getSize());
+        
+        CRC32 crc = new CRC32();
+        long remaining = file.getSize();
+        
+        this.metrics.addThrottle(this.limits.open());
+        
+        try (InputStream in = Files.newInputStream(file.getPath()))
+        {
+            begin(file.getName());
+            this.tar.putArchiveEntry(entry);
+            
+            while (remaining > 0)
+            {
+                int length = (int) Math.min(this.buffer.length, remaining);
+                this.metrics.addThrottle(this.limits.read(length));
+                
+                long started = System.nanoTime();
+                int read = in.read(this.buffer, 0, length);
+                long reading = System.nanoTime() - started;
+                this.metrics.addRead(reading);
+                this.limits.readTook(reading, Math.max(0, read));
+                
+                if (read <= 0) { break; }
+                
+                crc.update(this.buffer, 0, read);
+                hash(this.buffer, read);
+                this.tar.write(this.buffer, 0, read);
+                this.metrics.addCompress(System.nanoTime() - started - reading, read);
+                remaining -= read;
+            }
+        }
+        
+        long read = file.getSize() - remaining;
+        
+        // The header already promised the size the file had when it was listed.
+        if (remaining > 0)
+        {
+            Print.notice("  File shrank while archiving, padded with zeros", file.getName());
+            Arrays.fill(this.buffer, (byte) 0);
+            
+            while (remaining > 0)
+            {
+                int padding = (int) Math.min(this.buffer.length, remaining);
+                this.tar.write(this.buffer, 0, padding);
+                crc.update(this.buffer, 0, padding);
+                hash(this.buffer, padding);
+                remaining -= padding;
+            }
+        }
+        
+        this.tar.closeArchiveEntry();
+        
+        if (this.consistency != null)
+        {
+            this.consistency.after(file, read, false);
+        }
+        
+        this.listener.written(file.getName(), file.getSize(), file.getLastModified(), crc.getValue(), digest());
+        return Added.COMPRESSED;
+    }
+    
+    @Override
+    public void addData(String name, byte[] data, long lastModified) throws IOException
+    {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setModTime(modTime(lastModified));
+        entry.setSize(data.length);
+        this.unflushed += ArchiveWriter.sizeBound(name, data.length);
+        
+        begin(name);
+        this.tar.putArchiveEntry(entry);
+        this.tar.write(data);
+        this.tar.closeArchiveEntry();
+        
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        hash(data, data.length);
+        this.listener.written(name, data.length, lastModified, crc.getValue(), digest());
+    }
+    
+    /**
+     * Whole seconds, like GNU tar: a finer time doesn't fit the ustar header
+     * and would give nearly every entry a PAX header of its own.
+     */
+    private static Date modTime(long lastModified)
+    {
+        return new Date(lastModified / 1000 * 1000);
+    }
+    
+    private void hash(byte[] data, int length)
+    {
+        if (this.digest != null)
+        {
+            this.digest.update(data, 0, length);
+        }
+    }
+    
+    /**
+     * The hash of everything passed to {@link #hash} since the last call, or null when not hashing.
+     */
+    private byte[] digest()
+    {
+        return (this.digest == null) ? null : this.digest.digest();
+    }
+    
+    /**
+     * In solid mode, ends the current block if it's full and notes where the entry starts.
+     */
+    private void begin(String name) throws IOException
+    {
+        if (this.index == null)
+        {
+            return;
+        }
+        
+        if (this.position.count - this.blockStart >= this.blockSize)
+        {
+            this.compressed.flush();
+            this.blocks.cut();
+            this.blockStart = this.position.count;
+            this.index.startBlock(this.counted.count);
+        }
+        this.index.add(name, this.position.count - this.blockStart);
+    }
+    
+    /**
+     * Writes the end of the tar and the codec's trailer, and closes the file.
+     * In solid mode the index is saved next.
+     */
+    @Override
+    public void finish() throws IOException
+    {
+        this.tar.finish();
+        this.tar.close();
+        this.finished = true;
+        
+        if (this.index != null && this.indexFile != null)
+        {
+            this.index.save(this.indexFile);
+        }
+    }
+    
+    /**
+     * Makes the codec emit everything it holds, which costs a little ratio.
+     * The tar stream's own flush stops at its partly filled record.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        this.compressed.flush();
+        this.unflushed = 0;
+    }
+    
+    @Override
+    public long getBytesWritten()
+    {
+        return this.counted.count;
+    }
+    
+    @Override
+    public long getPendingBytes()
+    {
+        return this.unflushed + TRAILER_BOUND;
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        if (!this.finished)
+        {
+            // Abandoned: the codec still has to be ended to free its native context.
+            try
+            {
+                this.compressed.close();
+            }
+            catch (IOException | RuntimeException ignored)
+            {
+                // Its trailer is of no use to an archive that won't be kept.
+            }
+            finally
+            {
+                this.counted.close();
+            }
+        }
+    }
+    
+    // SolidBlocks
+    
+    /**
+     * Compresses what's written to it as a new frame after every {@link #cut()}.
+     */
+    private static final class SolidBlocks extends OutputStream
+    {
+        private final OutputStream out;
+        private final OutputStream unclosed;
+        private final ArchiveFormat format;
+        private final int threads;
+        private final int level;
+        
+        private OutputStream frame = null;
+        
+        private SolidBlocks(OutputStream out, ArchiveFormat format, int threads, int level)
+        {
+            this.out = out;
+            this.format = format;
+            this.threads = threads;
+            this.level = level;
+            
+            // Ending a frame closes the codec, which mustn't close the archive with it.
+            this.unclosed = new FilterOutputStream(out)
+            {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException
+                {
+                    this.out.write(bytes, offset, length);
+                }
+                
+                @Override
+                public void close() throws IOException
+                {
+                    flush();
+                }
+            };
+        }
+        
+        private OutputStream frame() throws IOException
+        {
+            if (this.frame == null)
+            {
+                this.frame = compressor(this.unclosed, this.format, this.threads, this.level);
+            }
+            return this.frame;
+        }
+        
+        @Override
+        public void write(int b) throws IOException
+        {
+            frame().write(b);
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            frame().write(bytes, offset, length);
+        }
+        
+        @Override
+        public void flush() throws IOException
+        {
+            if (this.frame != null)
+            {
+                this.frame.flush();
+            }
+        }
+        
+        /**
+         * Ends the current frame; the next write starts another.
+         */
+        private void cut() throws IOException
+        {
+            if (this.frame != null)
+            {
+                this.frame.close();
+                this.frame = null;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                cut();
+            }
+            finally
+            {
+                this.out.close();
+            }
+        }
+    }
+    
+    // CountingOutputStream
+    
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private long count = 0;
+        
+        private CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.out.write(b);
+            this.count += 1;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            this.out.write(bytes, offset, length);
+            this.count += length;
+        }
+    }
+}
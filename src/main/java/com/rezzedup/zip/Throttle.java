@@ -0,0 +1,86 @@
+package com.rezzedup.zip;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket: lets something happen at most {@code rate} times a second on
+ * average, with bursts of up to a second's worth. Taking more than is there
+ * puts the bucket in debt, which the taker sleeps off, so callers asking for
+ * large amounts at once are paced just like those asking for little.
+ * Thread-safe; callers queue up behind each other's debt.
+ */
+final class Throttle
+{
+    private double rate;
+    private double tokens;
+    private long refilled = System.nanoTime();
+    
+    /**
+     * @param rate amount allowed per second, or {@link Double#POSITIVE_INFINITY} for no limit
+     */
+    Throttle(double rate)
+    {
+        this.rate = rate;
+        this.tokens = (Double.isInfinite(rate)) ? 0 : rate;
+    }
+    
+    synchronized double getRate()
+    {
+        return this.rate;
+    }
+    
+    synchronized void setRate(double rate)
+    {
+        refill();
+        this.rate = rate;
+        this.tokens = (Double.isInfinite(rate)) ? 0 : Math.min(this.tokens, rate);
+    }
+    
+    /**
+     * Takes {@code amount} tokens, waiting until they're paid for.
+     *
+     * @return nanoseconds spent waiting
+     */
+    long acquire(long amount)
+    {
+        long wait;
+        
+        synchronized (this)
+        {
+            if (Double.isInfinite(this.rate))
+            {
+                return 0;
+            }
+            
+            refill();
+            this.tokens -= amount;
+            wait = (this.tokens >= 0) ? 0 : (long) (-this.tokens / this.rate * 1e9);
+        }
+        
+        if (wait <= 0)
+        {
+            return 0;
+        }
+        
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return wait;
+    }
+    
+    private void refill()
+    {
+        long now = System.nanoTime();
+        
+        if (!Double.isInfinite(this.rate))
+        {
+            this.tokens = Math.min(this.rate, this.tokens + (now - this.refilled) / 1e9 * this.rate);
+        }
+        this.refilled = now;
+    }
+}
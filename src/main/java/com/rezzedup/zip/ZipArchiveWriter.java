@@ -0,0 +1,420 @@
+package com.rezzedup.zip;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip through a {@link DeflatePipeline}. Files unchanged since the
+ * previous archive are copied from it, files with the same content as one
+ * already added are copied from this archive, and the rest are compressed
+ * at the level the {@link CompressionPolicy} picks.
+ * <p>
+ * With a {@link ConsistencyCheck}, a file that changed while it was read can
+ * be taken back out of a zip on disk and read again after the entries already
+ * queued. That's left to the check alone when deduplicating, as the entry may
+ * already be the original of a queued duplicate. The same goes for keeping
+ * to a size limit, where an entry that takes the zip past it is taken back
+ * along with everything after it, to go in the next volume.
+ */
+final class ZipArchiveWriter implements ArchiveWriter
+{
+    private final ZipWriter writer;
+    private final DeflatePipeline pipeline;
+    private final int level;
+    private final CompressionPolicy policy;
+    private final ZipReader previous;
+    private final DuplicateFinder duplicates;
+    private final FileChannel readBack;
+    private final FileChannel archive;
+    private final Checkpoint checkpoint;
+    private final ConsistencyCheck consistency;
+    private final Map<ZipWriter.Entry, Manifest.Entry> reading = new HashMap<>();
+    private final Deque<Manifest.Entry> changed = new ArrayDeque<>();
+    private final Deque<Overflow> queued = new ArrayDeque<>();
+    private final List<Overflow> overflow = new ArrayList<>();
+    
+    private Listener listener = (name, size, lastModified, crc, hash) -> {};
+    private long unwritten = 0;
+    private long limit = 0;
+    private long kept = 0;
+    
+    /**
+     * @param prefetch   how many chunks to read ahead of compressing them, or 0 not to
+     * @param previous   an earlier archive to copy unchanged files from, or null; closed along with this writer
+     * @param duplicates finds files already added, or null not to look
+     * @param checkpoint journal to record progress in, or null; if it was resumed, the
+     *                   file is cut back to the checkpoint and written on from there
+     * @param consistency checks files for changes while they're read, or null not to
+     */
+    ZipArchiveWriter(File file, int threads, int level, int prefetch, CompressionPolicy policy, ZipReader previous, DuplicateFinder duplicates, Checkpoint checkpoint, ConsistencyCheck consistency, JobMetrics metrics, IoLimits limits) throws IOException
+    {
+        this.level = level;
+        this.policy = policy;
+        this.previous = previous;
+        this.duplicates = duplicates;
+        this.checkpoint = checkpoint;
+        this.consistency = consistency;
+        
+        try
+        {
+            boolean resume = checkpoint != null && checkpoint.getOffset() > 0;
+            
+            if (resume)
+            {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+                {
+                    channel.truncate(checkpoint.getOffset());
+                }
+            }
+            
+            FileOutputStream output = new FileOutputStream(file, resume);
+            this.archive = output.getChannel();
+            this.writer = new ZipWriter(new BufferedOutputStream(limits.writing(output, metrics)), this.archive, limits);
+            
+            if (resume)
+            {
+                this.writer.resume(checkpoint.getOffset(), checkpoint.getEntryCount(), checkpoint.getCentralDirectory());
+            }
+            
+            this.readBack = (duplicates == null) ? null : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.pipeline = new DeflatePipeline(this.writer, threads, level, prefetch, metrics, limits);
+            this.pipeline.onWritten(this::written);
+            
+            if (consistency != null)
+            {
+                this.pipeline.snapshotReads();
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Streams the zip to {@code out}, which is never read back: nothing is reused or deduplicated.
+     */
+    ZipArchiveWriter(OutputStream out, int threads, int level, int prefetch, CompressionPolicy policy, ConsistencyCheck consistency, JobMetrics metrics, IoLimits limits)
+    {
+        this.level = level;
+        this.policy = policy;
+        this.previous = null;
+        this.duplicates = null;
+        this.readBack = null;
+        this.archive = null;
+        this.checkpoint = null;
+        this.consistency = consistency;
+        this.writer = new ZipWriter(new BufferedOutputStream(limits.writing(out, metrics)));
+        this.pipeline = new DeflatePipeline(this.writer, threads, level, prefetch, metrics, limits);
+        this.pipeline.onWritten(this::written);
+        
+        if (consistency != null)
+        {
+            this.pipeline.snapshotReads();
+        }
+    }
+    
+    @Override
+    public void onWritten(Listener listener)
+    {
+        this.listener = listener;
+    }
+    
+    /**
+     * Files copied from the previous archive aren't read, so they're passed on
+     * without a hash unless {@link #hashCopies} says otherwise.
+     */
+    @Override
+    public void hashContents()
+    {
+        this.pipeline.hashContents();
+    }
+    
+    /**
+     * Also hashes files copied from the previous archive by inflating them,
+     * except those {@code known} already has a hash for, which may be null.
+     */
+    void hashCopies(HashManifest known)
+    {
+        this.pipeline.hashCopies(known);
+    }
+    
+    private void written(ZipWriter.Entry entry)
+    {
+        this.unwritten = Math.max(0, this.unwritten - ArchiveWriter.sizeBound(entry.getName(), entry.getSize()));
+        Manifest.Entry before = this.reading.remove(entry);
+        
+        ConsistencyCheck.Snapshot read = this.pipeline.snapshot(entry);
+        Overflow added = (this.limit > 0) ? this.queued.poll() : null;
+        
+        if (before != null && after(before, entry.getSize(), read) && discard(entry))
+        {
+            this.changed.add(before);
+            return;
+        }
+        
+        if (added != null && this.kept > 0 && isOverLimit() && discard(entry))
+        {
+            this.overflow.add(added);
+            return;
+        }
+        this.kept += 1;
+        
+        this.listener.written(entry.getName(), entry.getSize(), entry.getLastModified(), entry.getCrc(), entry.getHash());
+        
+        if (this.checkpoint != null)
+        {
+            this.checkpoint.add(entry);
+            
+            if (this.checkpoint.isDue())
+            {
+                checkpoint();
+            }
+        }
+    }
+    
+    /**
+     * Checks the file against the snapshot taken right after it was last
+     * read, or as it is now if there's none.
+     */
+    private boolean after(Manifest.Entry before, long read, ConsistencyCheck.Snapshot snapshot)
+    {
+        if (snapshot == null)
+        {
+            return this.consistency.after(before, read, isRewindable());
+        }
+        return this.consistency.after(before, read, snapshot, isRewindable());
+    }
+    
+    /**
+     * Whether the zip is past its limit with the entry just written, or was
+     * already, which keeps the entries after the first one over it out too.
+     */
+    private boolean isOverLimit()
+    {
+        return !this.overflow.isEmpty() || this.writer.getBytesWritten() + this.writer.getTrailerSize() > this.limit;
+    }
+    
+    @Override
+    public boolean limitTo(long limit)
+    {
+        if (!isRewindable())
+        {
+            return false;
+        }
+        this.limit = limit;
+        return true;
+    }
+    
+    @Override
+    public List<Overflow> getOverflow()
+    {
+        return this.overflow;
+    }
+    
+    /**
+     * Notes how an entry just queued would be added again elsewhere, when
+     * keeping to a limit. Entries are written in the order they're queued.
+     */
+    private void queued(Overflow added)
+    {
+        if (this.limit > 0)
+        {
+            this.queued.add(added);
+        }
+    }
+    
+    private boolean isRewindable()
+    {
+        return this.archive != null && this.duplicates == null;
+    }
+    
+    /**
+     * Takes the entry just written back out of the archive. It's always the
+     * last one, as entries are reported as soon as they're written.
+     */
+    private boolean discard(ZipWriter.Entry entry)
+    {
+        try
+        {
+            this.writer.discard(entry);
+            return true;
+        }
+        catch (IOException io)
+        {
+            Print.notice("  Unable to take back " + entry.getName(), io.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Adds the files that changed while being read once more, along with any
+     * that change again while the others are queued.
+     */
+    private void retryChanged() throws IOException
+    {
+        while (!this.changed.isEmpty())
+        {
+            add(this.changed.poll());
+        }
+    }
+    
+    /**
+     * Syncs the archive to disk and records how far it got. Runs between
+     * entries, when everything written is a complete entry.
+     */
+    private void checkpoint()
+    {
+        try
+        {
+            this.writer.flush();
+            this.archive.force(false);
+            this.checkpoint.commit(this.writer);
+        }
+        catch (IOException io)
+        {
+            Print.notice("  Unable to write checkpoint", io.getMessage());
+        }
+    }
+    
+    @Override
+    public void addDirectory(Manifest.Entry directory) throws IOException
+    {
+        this.unwritten += ArchiveWriter.sizeBound(directory.getName(), 0);
+        this.pipeline.addDirectory(directory.getName(), directory.getLastModified());
+        queued(archive -> archive.addDirectory(directory));
+    }
+    
+    @Override
+    public Added addFile(Manifest.Entry file) throws IOException
+    {
+        retryChanged();
+        return add(file);
+    }
+    
+    private Added add(Manifest.Entry file) throws IOException
+    {
+        if (this.consistency != null)
+        {
+            file = this.consistency.before(file);
+            
+            if (file == null)
+            {
+                return Added.MISSING;
+            }
+        }
+        
+        Manifest.Entry listed = file;
+        queued(archive -> archive.addFile(listed));
+        
+        this.unwritten += ArchiveWriter.sizeBound(file.getName(), file.getSize());
+        ZipReader.Entry unchanged = (this.previous == null) ? null : this.previous.getEntry(file.getName());
+        
+        if (unchanged != null && unchanged.matches(file.getSize(), file.getLastModified()))
+        {
+            this.pipeline.addCopy(file.getName(), file.getLastModified(), this.previous, unchanged);
+            return Added.REUSED;
+        }
+        
+        DuplicateFinder.Digest digest = (this.duplicates == null) ? null : this.duplicates.digest(file);
+        ZipWriter.Entry original = (digest == null) ? null : this.duplicates.original(digest);
+        
+        if (original != null)
+        {
+            this.pipeline.addDuplicate(file.getName(), file.getLastModified(), original, this.readBack);
+            return Added.DUPLICATE;
+        }
+        
+        int level = this.policy.levelFor(file, this.level);
+        ZipWriter.Entry added = this.pipeline.addFile(file.getName(), file.getPath(), file.getSize(), file.getLastModified(), level);
+        
+        if (this.consistency != null)
+        {
+            this.reading.put(added, file);
+        }
+        
+        if (digest != null)
+        {
+            this.duplicates.remember(digest, added);
+        }
+        return (level == Deflater.NO_COMPRESSION && this.level != Deflater.NO_COMPRESSION) ? Added.STORED : Added.COMPRESSED;
+    }
+    
+    @Override
+    public void addData(String name, byte[] data, long lastModified) throws IOException
+    {
+        this.unwritten += ArchiveWriter.sizeBound(name, data.length);
+        this.pipeline.addData(name, data, lastModified);
+        queued(archive -> archive.addData(name, data, lastModified));
+    }
+    
+    @Override
+    public void finish() throws IOException
+    {
+        this.pipeline.flush();
+        
+        while (!this.changed.isEmpty())
+        {
+            retryChanged();
+            this.pipeline.flush();
+        }
+        
+        this.pipeline.finish();
+        
+        if (this.checkpoint != null)
+        {
+            this.checkpoint.delete();
+        }
+    }
+    
+    @Override
+    public void flush() throws IOException
+    {
+        this.pipeline.flush();
+        this.unwritten = 0;
+    }
+    
+    @Override
+    public long getBytesWritten()
+    {
+        return this.writer.getBytesWritten();
+    }
+    
+    @Override
+    public long getPendingBytes()
+    {
+        return this.unwritten + this.writer.getTrailerSize();
+    }
+    
+    /**
+     * The resources are only declared to be closed, in reverse order, each
+     * even if another fails, with any further failures added as suppressed.
+     */
+    @Override
+    @SuppressWarnings("try")
+    public void close() throws IOException
+    {
+        if (this.pipeline != null) { this.pipeline.close(); }
+        
+        try (Checkpoint checkpoint = this.checkpoint;
+             ZipReader previous = this.previous;
+             FileChannel readBack = this.readBack;
+             ZipWriter writer = this.writer)
+        {
+            // Closed in reverse order.
+        }
+    }
+}
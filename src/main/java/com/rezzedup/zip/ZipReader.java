@@ -0,0 +1,376 @@
+package com.rezzedup.zip;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reads the central directory of an existing zip so that entries can be
+ * copied into a new archive without being inflated and deflated again.
+ */
+final class ZipReader implements Closeable
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int END = 0x06054b50;
+    
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int TIMESTAMP_EXTRA = 0x5455;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    
+    private static final int FLAG_ENCRYPTED = 1;
+    
+    private final File file;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new HashMap<>();
+    
+    ZipReader(File file) throws IOException
+    {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        
+        try
+        {
+            readCentralDirectory();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            this.channel.close();
+            throw e;
+        }
+    }
+    
+    File getFile()
+    {
+        return this.file;
+    }
+    
+    FileChannel getChannel()
+    {
+        return this.channel;
+    }
+    
+    Entry getEntry(String name)
+    {
+        return this.entries.get(name);
+    }
+    
+    int size()
+    {
+        return this.entries.size();
+    }
+    
+    Collection<Entry> getEntries()
+    {
+        return Collections.unmodifiableCollection(this.entries.values());
+    }
+    
+    /**
+     * Position of the entry's compressed data, just past its local header.
+     */
+    long getDataOffset(Entry entry) throws IOException
+    {
+        ByteBuffer header = read(entry.offset, 30);
+        
+        if (header.getInt(0) != LOCAL_HEADER)
+        {
+            throw new IOException("Missing local header for '" + entry.name + "' in " + this.file);
+        }
+        return entry.offset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+    
+    /**
+     * Reads an entry's content, inflated if need be. Entries can be read
+     * from several threads at once, as each stream reads at its own position.
+     */
+    InputStream open(Entry entry) throws IOException
+    {
+        InputStream data = new Region(getDataOffset(entry), entry.compressedSize);
+        
+        if (entry.method == ZipEntry.STORED)
+        {
+            return data;
+        }
+        
+        if (entry.method != ZipEntry.DEFLATED)
+        {
+            throw new IOException("Unsupported compression method " + entry.method + " for '" + entry.name + "' in " + this.file);
+        }
+        
+        Inflater inflater = new Inflater(true);
+        
+        return new InflaterInputStream(data, inflater, 64 * 1024)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                inflater.end();
+                super.close();
+            }
+        };
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        this.channel.close();
+    }
+    
+    private void readCentralDirectory() throws IOException
+    {
+        long length = this.channel.size();
+        int tail = (int) Math.min(length, 22 + 0xFFFF);
+        ByteBuffer end = read(length - tail, tail);
+        int position = -1;
+        
+        for (int i = tail - 22; i >= 0; i--)
+        {
+            if (end.getInt(i) == END)
+            {
+                position = i;
+                break;
+            }
+        }
+        
+        if (position < 0)
+        {
+            throw new IOException("Not a zip file: " + this.file);
+        }
+        
+        long count = end.getShort(position + 10) & 0xFFFF;
+        long directoryOffset = end.getInt(position + 16) & ZIP64_MAGIC;
+        long endOffset = length - tail + position;
+        
+        if (endOffset >= 20)
+        {
+            ByteBuffer locator = read(endOffset - 20, 20);
+            
+            if (locator.getInt(0) == ZIP64_LOCATOR)
+            {
+                ByteBuffer zip64 = read(locator.getLong(8), 56);
+                
+                if (zip64.getInt(0) != ZIP64_END)
+                {
+                    throw new IOException("Broken zip64 end record in " + this.file);
+                }
+                count = zip64.getLong(32);
+                directoryOffset = zip64.getLong(48);
+            }
+        }
+        
+        InputStream in = new BufferedInputStream(Channels.newInputStream(this.channel.position(directoryOffset)), 64 * 1024);
+        ByteBuffer header = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+        
+        for (long i = 0; i < count; i++)
+        {
+            readFully(in, header.array(), 46);
+            
+            if (header.getInt(0) != CENTRAL_HEADER)
+            {
+                throw new IOException("Broken central directory in " + this.file);
+            }
+            
+            byte[] name = new byte[header.getShort(28) & 0xFFFF];
+            byte[] extra = new byte[header.getShort(30) & 0xFFFF];
+            readFully(in, name, name.length);
+            readFully(in, extra, extra.length);
+            readFully(in, new byte[header.getShort(32) & 0xFFFF], header.getShort(32) & 0xFFFF);
+            
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8));
+            entry.flags = header.getShort(8) & 0xFFFF;
+            entry.method = header.getShort(10) & 0xFFFF;
+            entry.crc = header.getInt(16) & ZIP64_MAGIC;
+            entry.compressedSize = header.getInt(20) & ZIP64_MAGIC;
+            entry.size = header.getInt(24) & ZIP64_MAGIC;
+            entry.offset = header.getInt(42) & ZIP64_MAGIC;
+            
+            readExtra(entry, ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN));
+            
+            if ((entry.flags & FLAG_ENCRYPTED) == 0)
+            {
+                this.entries.put(entry.name, entry);
+            }
+        }
+    }
+    
+    private static void readExtra(Entry entry, ByteBuffer extra)
+    {
+        while (extra.remaining() >= 4)
+        {
+            int id = extra.getShort() & 0xFFFF;
+            int size = extra.getShort() & 0xFFFF;
+            
+            if (size > extra.remaining())
+            {
+                return;
+            }
+            
+            int next = extra.position() + size;
+            
+            if (id == ZIP64_EXTRA)
+            {
+                if (entry.size == ZIP64_MAGIC && extra.position() + 8 <= next) { entry.size = extra.getLong(); }
+                if (entry.compressedSize == ZIP64_MAGIC && extra.position() + 8 <= next) { entry.compressedSize = extra.getLong(); }
+                if (entry.offset == ZIP64_MAGIC && extra.position() + 8 <= next) { entry.offset = extra.getLong(); }
+            }
+            else if (id == TIMESTAMP_EXTRA && size >= 5 && (extra.get(extra.position()) & 1) != 0)
+            {
+                entry.modifiedSeconds = extra.getInt(extra.position() + 1) & ZIP64_MAGIC;
+            }
+            
+            extra.position(next);
+        }
+    }
+    
+    private ByteBuffer read(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        
+        while (buffer.hasRemaining())
+        {
+            if (this.channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of " + this.file);
+            }
+        }
+        return buffer;
+    }
+    
+    private void readFully(InputStream in, byte[] into, int length) throws IOException
+    {
+        int offset = 0;
+        
+        while (offset < length)
+        {
+            int read = in.read(into, offset, length - offset);
+            
+            if (read < 0)
+            {
+                throw new EOFException("Unexpected end of " + this.file);
+            }
+            offset += read;
+        }
+    }
+    
+    // Region
+    
+    /**
+     * Part of the archive, read without moving the channel's own position.
+     */
+    private final class Region extends InputStream
+    {
+        private long position;
+        private long remaining;
+        
+        private Region(long position, long length)
+        {
+            this.position = position;
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] into, int offset, int length) throws IOException
+        {
+            if (this.remaining <= 0)
+            {
+                return -1;
+            }
+            
+            ByteBuffer buffer = ByteBuffer.wrap(into, offset, (int) Math.min(length, this.remaining));
+            int read = channel.read(buffer, this.position);
+            
+            if (read < 0)
+            {
+                throw new EOFException("Unexpected end of " + file);
+            }
+            
+            this.position += read;
+            this.remaining -= read;
+            return read;
+        }
+    }
+    
+    // Entry
+    
+    static final class Entry
+    {
+        private final String name;
+        private int flags;
+        private int method;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long offset;
+        private long modifiedSeconds = -1;
+        
+        private Entry(String name)
+        {
+            this.name = name;
+        }
+        
+        String getName()
+        {
+            return this.name;
+        }
+        
+        boolean isDirectory()
+        {
+            return this.name.endsWith("/");
+        }
+        
+        int getMethod()
+        {
+            return this.method;
+        }
+        
+        long getCrc()
+        {
+            return this.crc;
+        }
+        
+        long getCompressedSize()
+        {
+            return this.compressedSize;
+        }
+        
+        long getSize()
+        {
+            return this.size;
+        }
+        
+        /**
+         * Whether this entry was made from a file with the given size and
+         * modification time. Needs the extended timestamp Zip-It writes, as
+         * the DOS time alone is too coarse and zone-dependent to trust.
+         */
+        boolean matches(long size, long lastModified)
+        {
+            return this.modifiedSeconds >= 0 && this.size == size && this.modifiedSeconds == Math.max(0, lastModified / 1000);
+        }
+    }
+}
@@ -0,0 +1,650 @@
+package com.rezzedup.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the zip container format around data that has already been
+ * compressed elsewhere. Entries with known sizes get complete local headers,
+ * entries written in pieces are followed by a data descriptor. Zip64 records
+ * are added only where the classic fields would overflow.
+ */
+final class ZipWriter implements Closeable
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+    
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int TIMESTAMP_EXTRA = 0x5455;
+    private static final int TIMESTAMP_EXTRA_LENGTH = 4 + 5;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_ENTRIES = 0xFFFF;
+    
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    
+    private static final int FLAG_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+    
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long TRANSFER_SLICE = 1024 * 1024;
+    
+    private final OutputStream out;
+    private final FileChannel channel;
+    private final IoLimits limits;
+    private final Directory central = new Directory();
+    private final ByteArrayOutputStream extra = new ByteArrayOutputStream(24);
+    
+    private long written = 0;
+    private long entries = 0;
+    private Entry current = null;
+    private Entry last = null;
+    private int lastCentral = 0;
+    private ByteBuffer copyBuffer = null;
+    
+    ZipWriter(OutputStream out)
+    {
+        this(out, null, IoLimits.unlimited());
+    }
+    
+    /**
+     * @param channel the file {@code out} ultimately writes to, if any, which
+     *                lets copied and stored data be sent with {@code transferTo}
+     * @param limits  what data sent with {@code transferTo} is written under,
+     *                since it bypasses {@code out}
+     */
+    ZipWriter(OutputStream out, FileChannel channel, IoLimits limits)
+    {
+        this.out = out;
+        this.channel = channel;
+        this.limits = limits;
+    }
+    
+    /**
+     * Writes a complete entry whose crc and uncompressed size are already set.
+     */
+    void write(Entry entry, byte[] data, int offset, int length) throws IOException
+    {
+        requireNoCurrentEntry();
+        
+        entry.compressedSize = length;
+        entry.offset = this.written;
+        
+        writeLocalHeader(entry);
+        entry.dataOffset = this.written;
+        writeBytes(data, offset, length);
+        writeCentralHeader(entry);
+    }
+    
+    /**
+     * Writes an entry whose compressed data is copied as-is from another archive,
+     * or from earlier in this one after a {@link #flush()}.
+     */
+    void copy(Entry entry, long crc, long size, FileChannel source, long position, long compressedSize) throws IOException
+    {
+        requireNoCurrentEntry();
+        
+        entry.sizes(crc, size);
+        entry.compressedSize = compressedSize;
+        entry.offset = this.written;
+        
+        writeLocalHeader(entry);
+        entry.dataOffset = this.written;
+        
+        if (transfer(source, position, compressedSize) < compressedSize)
+        {
+            throw new EOFException("Source ended inside '" + entry.getName() + "'");
+        }
+        writeCentralHeader(entry);
+    }
+    
+    /**
+     * Writes a STORED entry whose crc and size are already set, taking its data
+     * from the start of {@code source}. A source that shrank since it was
+     * checksummed is padded with zeros, as tar does, so the archive stays
+     * readable; the entry's crc then won't match.
+     */
+    void store(Entry entry, FileChannel source, long size) throws IOException
+    {
+        requireNoCurrentEntry();
+        
+        entry.compressedSize = size;
+        entry.offset = this.written;
+        
+        writeLocalHeader(entry);
+        entry.dataOffset = this.written;
+        
+        long missing = size - transfer(source, 0, size);
+        byte[] zeros = (missing > 0) ? new byte[COPY_BUFFER_SIZE] : null;
+        
+        while (missing > 0)
+        {
+            int padding = (int) Math.min(zeros.length, missing);
+            writeBytes(zeros, 0, padding);
+            missing -= padding;
+        }
+        writeCentralHeader(entry);
+    }
+    
+    /**
+     * Starts an entry whose sizes are not known yet. Its data is supplied with
+     * {@link #write(byte[], int, int)} and completed with {@link #end(long, long)}.
+     */
+    void begin(Entry entry) throws IOException
+    {
+        requireNoCurrentEntry();
+        
+        entry.flags |= FLAG_DESCRIPTOR;
+        entry.crc = 0;
+        entry.compressedSize = 0;
+        entry.size = 0;
+        entry.offset = this.written;
+        
+        writeLocalHeader(entry);
+        entry.dataOffset = this.written;
+        this.current = entry;
+    }
+    
+    void write(byte[] data, int offset, int length) throws IOException
+    {
+        if (this.current == null)
+        {
+            throw new IllegalStateException("No entry has been started");
+        }
+        
+        writeBytes(data, offset, length);
+        this.current.compressedSize += length;
+    }
+    
+    void end(long crc, long size) throws IOException
+    {
+        Entry entry = this.current;
+        
+        if (entry == null)
+        {
+            throw new IllegalStateException("No entry has been started");
+        }
+        
+        entry.crc = crc;
+        entry.size = size;
+        
+        writeInt(this.out, DATA_DESCRIPTOR);
+        writeInt(this.out, entry.crc);
+        
+        // Same rule as ZipOutputStream: the descriptor only widens when the sizes actually need it.
+        if (entry.needsZip64Sizes())
+        {
+            writeLong(this.out, entry.compressedSize);
+            writeLong(this.out, entry.size);
+            this.written += 4 + 4 + 8 + 8;
+        }
+        else
+        {
+            writeInt(this.out, entry.compressedSize);
+            writeInt(this.out, entry.size);
+            this.written += 4 + 4 + 4 + 4;
+        }
+        
+        writeCentralHeader(entry);
+        this.current = null;
+    }
+    
+    /**
+     * Takes back the entry written last, cutting the archive and the central
+     * directory back to where they were before it. Only possible when writing
+     * to a file, and only until the next entry is started.
+     */
+    void discard(Entry entry) throws IOException
+    {
+        requireNoCurrentEntry();
+        
+        if (this.channel == null || entry != this.last)
+        {
+            throw new IllegalStateException("Entry '" + entry.getName() + "' can't be taken back");
+        }
+        
+        this.out.flush();
+        this.channel.truncate(entry.offset);
+        this.central.truncate(this.lastCentral);
+        this.written = entry.offset;
+        this.entries -= 1;
+        this.last = null;
+    }
+    
+    /**
+     * Writes the central directory. The underlying stream is left open.
+     */
+    void finish() throws IOException
+    {
+        requireNoCurrentEntry();
+        
+        long directoryOffset = this.written;
+        long directorySize = this.central.size();
+        
+        this.central.writeTo(this.out);
+        this.written += directorySize;
+        
+        if (this.entries >= ZIP64_MAGIC_ENTRIES || directoryOffset >= ZIP64_MAGIC || directorySize >= ZIP64_MAGIC)
+        {
+            long zip64EndOffset = this.written;
+            
+            writeInt(this.out, ZIP64_END);
+            writeLong(this.out, 44);
+            writeShort(this.out, VERSION_ZIP64);
+            writeShort(this.out, VERSION_ZIP64);
+            writeInt(this.out, 0);
+            writeInt(this.out, 0);
+            writeLong(this.out, this.entries);
+            writeLong(this.out, this.entries);
+            writeLong(this.out, directorySize);
+            writeLong(this.out, directoryOffset);
+            
+            writeInt(this.out, ZIP64_LOCATOR);
+            writeInt(this.out, 0);
+            writeLong(this.out, zip64EndOffset);
+            writeInt(this.out, 1);
+            
+            this.written += 56 + 20;
+        }
+        
+        int entryCount = (int) Math.min(this.entries, ZIP64_MAGIC_ENTRIES);
+        
+        writeInt(this.out, END);
+        writeShort(this.out, 0);
+        writeShort(this.out, 0);
+        writeShort(this.out, entryCount);
+        writeShort(this.out, entryCount);
+        writeInt(this.out, Math.min(directorySize, ZIP64_MAGIC));
+        writeInt(this.out, Math.min(directoryOffset, ZIP64_MAGIC));
+        writeShort(this.out, 0);
+        
+        this.written += 22;
+        this.out.flush();
+    }
+    
+    /**
+     * Pushes everything written so far to the underlying stream.
+     */
+    void flush() throws IOException
+    {
+        this.out.flush();
+    }
+    
+    long getBytesWritten()
+    {
+        return this.written;
+    }
+    
+    long getEntryCount()
+    {
+        return this.entries;
+    }
+    
+    int getCentralDirectorySize()
+    {
+        return this.central.size();
+    }
+    
+    /**
+     * Copies the central directory records written so far, from byte {@code from} on.
+     */
+    void writeCentralDirectory(OutputStream out, int from) throws IOException
+    {
+        this.central.writeTo(out, from);
+    }
+    
+    /**
+     * Carries on an archive whose first {@code written} bytes are already in
+     * place, holding {@code entries} entries described by {@code central}.
+     * Must be called before anything is written.
+     */
+    void resume(long written, long entries, byte[] central)
+    {
+        if (this.written != 0 || this.entries != 0)
+        {
+            throw new IllegalStateException("Can only resume before writing");
+        }
+        this.written = written;
+        this.entries = entries;
+        this.central.write(central, 0, central.length);
+    }
+    
+    /**
+     * Most {@link #finish()} can add: the central directory so far and the end records.
+     */
+    long getTrailerSize()
+    {
+        return this.central.size() + 56 + 20 + 22;
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        this.out.close();
+    }
+    
+    private void requireNoCurrentEntry()
+    {
+        if (this.current != null)
+        {
+            throw new IllegalStateException("Entry '" + this.current.getName() + "' has not been ended");
+        }
+    }
+    
+    /**
+     * Copies up to {@code count} bytes of {@code source} into the archive.
+     *
+     * @return how many were copied, fewer only if the source ended first
+     */
+    private long transfer(FileChannel source, long position, long count) throws IOException
+    {
+        long remaining = count;
+        
+        if (this.channel != null)
+        {
+            this.out.flush();
+            
+            while (remaining > 0)
+            {
+                long slice = Math.min(remaining, TRANSFER_SLICE);
+                this.limits.write(slice);
+                
+                long sent = source.transferTo(position, slice, this.channel);
+                
+                if (sent <= 0)
+                {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            
+            this.written += count - remaining;
+            return count - remaining;
+        }
+        
+        if (this.copyBuffer == null)
+        {
+            this.copyBuffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        }
+        
+        ByteBuffer buffer = this.copyBuffer;
+        
+        while (remaining > 0)
+        {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+            int read = source.read(buffer, position);
+            
+            if (read < 0)
+            {
+                break;
+            }
+            
+            writeBytes(buffer.array(), 0, read);
+            position += read;
+            remaining -= read;
+        }
+        return count - remaining;
+    }
+    
+    private void writeBytes(byte[] data, int offset, int length) throws IOException
+    {
+        this.out.write(data, offset, length);
+        this.written += length;
+    }
+    
+    private void writeLocalHeader(Entry entry) throws IOException
+    {
+        boolean descriptor = (entry.flags & FLAG_DESCRIPTOR) != 0;
+        boolean zip64 = !descriptor && entry.needsZip64Sizes();
+        
+        writeInt(this.out, LOCAL_HEADER);
+        writeShort(this.out, (zip64) ? VERSION_ZIP64 : VERSION);
+        writeShort(this.out, entry.flags);
+        writeShort(this.out, entry.method);
+        writeInt(this.out, entry.time);
+        writeInt(this.out, entry.crc);
+        writeInt(this.out, (zip64) ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(this.out, (zip64) ? ZIP64_MAGIC : entry.size);
+        writeShort(this.out, entry.name.length);
+        writeShort(this.out, ((zip64) ? 20 : 0) + TIMESTAMP_EXTRA_LENGTH);
+        this.out.write(entry.name);
+        
+        if (zip64)
+        {
+            writeShort(this.out, ZIP64_EXTRA);
+            writeShort(this.out, 16);
+            writeLong(this.out, entry.size);
+            writeLong(this.out, entry.compressedSize);
+        }
+        writeTimestamp(this.out, entry);
+        
+        this.written += 30 + entry.name.length + ((zip64) ? 20 : 0) + TIMESTAMP_EXTRA_LENGTH;
+    }
+    
+    private void writeCentralHeader(Entry entry) throws IOException
+    {
+        ByteArrayOutputStream extra = this.extra;
+        extra.reset();
+        
+        if (entry.size >= ZIP64_MAGIC) { writeLong(extra, entry.size); }
+        if (entry.compressedSize >= ZIP64_MAGIC) { writeLong(extra, entry.compressedSize); }
+        if (entry.offset >= ZIP64_MAGIC) { writeLong(extra, entry.offset); }
+        
+        boolean zip64 = extra.size() > 0;
+        int version = (zip64) ? VERSION_ZIP64 : VERSION;
+        this.lastCentral = this.central.size();
+        
+        writeInt(this.central, CENTRAL_HEADER);
+        writeShort(this.central, version);
+        writeShort(this.central, version);
+        writeShort(this.central, entry.flags);
+        writeShort(this.central, entry.method);
+        writeInt(this.central, entry.time);
+        writeInt(this.central, entry.crc);
+        writeInt(this.central, Math.min(entry.compressedSize, ZIP64_MAGIC));
+        writeInt(this.central, Math.min(entry.size, ZIP64_MAGIC));
+        writeShort(this.central, entry.name.length);
+        writeShort(this.central, ((zip64) ? 4 + extra.size() : 0) + TIMESTAMP_EXTRA_LENGTH);
+        writeShort(this.central, 0);
+        writeShort(this.central, 0);
+        writeShort(this.central, 0);
+        writeInt(this.central, (entry.isDirectory()) ? DIRECTORY_ATTRIBUTE : 0);
+        writeInt(this.central, Math.min(entry.offset, ZIP64_MAGIC));
+        this.central.write(entry.name);
+        
+        if (zip64)
+        {
+            writeShort(this.central, ZIP64_EXTRA);
+            writeShort(this.central, extra.size());
+            extra.writeTo(this.central);
+        }
+        writeTimestamp(this.central, entry);
+        
+        this.entries += 1;
+        this.last = entry;
+    }
+    
+    /**
+     * The extended timestamp keeps the modification time in UTC seconds,
+     * which is what lets a later run recognise unchanged files.
+     */
+    private static void writeTimestamp(OutputStream out, Entry entry) throws IOException
+    {
+        writeShort(out, TIMESTAMP_EXTRA);
+        writeShort(out, 5);
+        out.write(1);
+        writeInt(out, Math.min(Math.max(0, entry.lastModified / 1000), ZIP64_MAGIC));
+    }
+    
+    private static void writeShort(OutputStream out, int value) throws IOException
+    {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+    
+    private static void writeInt(OutputStream out, long value) throws IOException
+    {
+        writeShort(out, (int) (value & 0xFFFF));
+        writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+    }
+    
+    private static void writeLong(OutputStream out, long value) throws IOException
+    {
+        writeInt(out, value & ZIP64_MAGIC);
+        writeInt(out, value >>> 32);
+    }
+    
+    // Entry
+    
+    static final class Entry
+    {
+        private final String path;
+        private final byte[] name;
+        private final int method;
+        private final long lastModified;
+        private final long time;
+        
+        private int flags = FLAG_UTF8;
+        private long crc = 0;
+        private long compressedSize = 0;
+        private long size = 0;
+        private long offset = 0;
+        private long dataOffset = 0;
+        private byte[] hash = null;
+        
+        Entry(String name, int method, long lastModified)
+        {
+            this.path = name;
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.lastModified = lastModified;
+            this.time = dosTime(lastModified);
+        }
+        
+        static Entry directory(String name, long lastModified)
+        {
+            return new Entry(name, ZipEntry.STORED, lastModified);
+        }
+        
+        Entry sizes(long crc, long size)
+        {
+            this.crc = crc;
+            this.size = size;
+            return this;
+        }
+        
+        /**
+         * Notes the SHA-256 of the uncompressed content. Not part of the zip itself.
+         */
+        Entry hash(byte[] hash)
+        {
+            this.hash = hash;
+            return this;
+        }
+        
+        String getName()
+        {
+            return this.path;
+        }
+        
+        boolean isDirectory()
+        {
+            return this.path.endsWith("/");
+        }
+        
+        int getMethod()
+        {
+            return this.method;
+        }
+        
+        long getLastModified()
+        {
+            return this.lastModified;
+        }
+        
+        long getCrc()
+        {
+            return this.crc;
+        }
+        
+        long getSize()
+        {
+            return this.size;
+        }
+        
+        long getCompressedSize()
+        {
+            return this.compressedSize;
+        }
+        
+        /**
+         * @return the content's SHA-256, or null if it wasn't hashed
+         */
+        byte[] getHash()
+        {
+            return this.hash;
+        }
+        
+        /**
+         * Position of the entry's compressed data in the archive, once written.
+         */
+        long getDataOffset()
+        {
+            return this.dataOffset;
+        }
+        
+        private boolean needsZip64Sizes()
+        {
+            return this.size >= ZIP64_MAGIC || this.compressedSize >= ZIP64_MAGIC;
+        }
+    }
+    
+    static long dosTime(long millis)
+    {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        
+        if (time.getYear() < 1980)
+        {
+            return (1 << 21) | (1 << 16);
+        }
+        
+        return ((long) (time.getYear() - 1980) << 25)
+            | ((long) time.getMonthValue() << 21)
+            | ((long) time.getDayOfMonth() << 16)
+            | ((long) time.getHour() << 11)
+            | ((long) time.getMinute() << 5)
+            | ((long) time.getSecond() >> 1);
+    }
+    
+    // Directory
+    
+    private static final class Directory extends ByteArrayOutputStream
+    {
+        private void writeTo(OutputStream out, int from) throws IOException
+        {
+            out.write(this.buf, from, this.count - from);
+        }
+        
+        private void truncate(int size)
+        {
+            this.count = size;
+        }
+    }
+}